@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.derpfest.hardware;
+
+import android.os.SystemClock;
+import android.os.SystemProperties;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Latency histograms for hardware calls, per feature and method.
+ *
+ * Recording is lock-free: every feature and method pair has its own set of
+ * atomic counters, created on first use. Latencies go into power of two
+ * microsecond buckets, so percentiles are reported as the upper bound of the
+ * bucket they fall in.
+ *
+ * Disabled by setting debug.lineage.hw_call_stats to false, which takes effect
+ * on the next start of the process. When disabled, {@link #start()} and
+ * {@link #record} return right away without reading the clock.
+ *
+ * @hide
+ */
+public final class HardwareCallStats {
+
+    public static final boolean ENABLED =
+            SystemProperties.getBoolean("debug.lineage.hw_call_stats", true);
+
+    public static final int GET = 0;
+    public static final int SET = 1;
+    public static final int GET_SUPPORTED_FEATURES = 2;
+    public static final int GET_SERVICE = 3;
+    public static final int GET_CALIBRATION = 4;
+    public static final int SET_CALIBRATION = 5;
+    public static final int GET_DISPLAY_MODES = 6;
+    public static final int GET_CURRENT_DISPLAY_MODE = 7;
+    public static final int GET_DEFAULT_DISPLAY_MODE = 8;
+    public static final int SET_DISPLAY_MODE = 9;
+    public static final int GET_COLOR_BALANCE = 10;
+    public static final int SET_COLOR_BALANCE = 11;
+    public static final int GET_PICTURE_ADJUSTMENT = 12;
+    public static final int SET_PICTURE_ADJUSTMENT = 13;
+    public static final int GET_RANGES = 14;
+    public static final int GET_GESTURES = 15;
+    public static final int SET_GESTURE = 16;
+
+    private static final String[] METHOD_NAMES = {
+        "get", "set", "getSupportedFeatures", "getService",
+        "getCalibration", "setCalibration",
+        "getDisplayModes", "getCurrentDisplayMode", "getDefaultDisplayMode", "setDisplayMode",
+        "getColorBalance", "setColorBalance",
+        "getPictureAdjustment", "setPictureAdjustment",
+        "getRanges", "getGestures", "setGesture",
+    };
+
+    // features are single bits, slots are indexed by method and bit position + 1,
+    // slot 0 of a method is for calls not tied to a feature
+    private static final int FEATURE_SLOTS = 33;
+
+    // counters in a slot
+    private static final int COUNT = 0;
+    private static final int ERRORS = 1;
+    private static final int MAX_US = 2;
+    private static final int BUCKETS = 3;
+    private static final int BUCKET_COUNT = 32;
+
+    private final String mName;
+    private final AtomicReferenceArray<AtomicLongArray> mSlots =
+            new AtomicReferenceArray<>(METHOD_NAMES.length * FEATURE_SLOTS);
+
+    public HardwareCallStats(String name) {
+        mName = name;
+    }
+
+    /**
+     * @return the token to pass to {@link #record}
+     */
+    public static long start() {
+        return ENABLED ? SystemClock.elapsedRealtimeNanos() : 0;
+    }
+
+    /**
+     * Records a call which started at the given token.
+     *
+     * @param feature a single feature bit, or 0 if the call isn't tied to one
+     * @param error true if the call failed: it threw, or the hardware reported a
+     *        failure by returning false from a setter or no value from a getter.
+     *        Calls which are not made at all, because the feature is not
+     *        supported, are not recorded.
+     */
+    public void record(int method, int feature, long start, boolean error) {
+        if (!ENABLED) {
+            return;
+        }
+        final long us = Math.max(0, (SystemClock.elapsedRealtimeNanos() - start) / 1000);
+        final AtomicLongArray slot = getSlot(method, feature);
+
+        slot.incrementAndGet(COUNT);
+        if (error) {
+            slot.incrementAndGet(ERRORS);
+        }
+        long max;
+        while (us > (max = slot.get(MAX_US))) {
+            if (slot.compareAndSet(MAX_US, max, us)) {
+                break;
+            }
+        }
+        // bucket i holds latencies below 2^i us
+        final int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(us));
+        slot.incrementAndGet(BUCKETS + bucket);
+    }
+
+    private AtomicLongArray getSlot(int method, int feature) {
+        final int index = method * FEATURE_SLOTS +
+                (feature == 0 ? 0 : Integer.numberOfTrailingZeros(feature) + 1);
+        AtomicLongArray slot = mSlots.get(index);
+        if (slot == null) {
+            slot = new AtomicLongArray(BUCKETS + BUCKET_COUNT);
+            if (!mSlots.compareAndSet(index, null, slot)) {
+                slot = mSlots.get(index);
+            }
+        }
+        return slot;
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println();
+        pw.println("HardwareCallStats " + mName + ":");
+        if (!ENABLED) {
+            pw.println("  disabled");
+            return;
+        }
+        boolean empty = true;
+        for (int i = 0; i < mSlots.length(); i++) {
+            final AtomicLongArray slot = mSlots.get(i);
+            if (slot == null) {
+                continue;
+            }
+            empty = false;
+            final int feature = i % FEATURE_SLOTS;
+            final long count = slot.get(COUNT);
+            pw.println("  " + METHOD_NAMES[i / FEATURE_SLOTS] +
+                    (feature == 0 ? "" : "(0x" + Integer.toHexString(1 << (feature - 1)) + ")") +
+                    ": count=" + count + " errors=" + slot.get(ERRORS) +
+                    " p50<" + getPercentile(slot, count, 50) + "us" +
+                    " p99<" + getPercentile(slot, count, 99) + "us" +
+                    " max=" + slot.get(MAX_US) + "us");
+        }
+        if (empty) {
+            pw.println("  no calls");
+        }
+    }
+
+    /**
+     * @return the upper bound of the bucket holding the given percentile
+     */
+    private static long getPercentile(AtomicLongArray slot, long count, int percentile) {
+        final long target = Math.max(1, (count * percentile + 99) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += slot.get(BUCKETS + i);
+            if (seen >= target) {
+                return 1L << i;
+            }
+        }
+        return 1L << (BUCKET_COUNT - 1);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.derpfest.hardware;
+
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.Range;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * What the hardware supports, as discovered by {@link LineageHardwareManager}.
+ *
+ * Capabilities only change with the build, so a snapshot is stored along with
+ * the build fingerprint and used to answer queries at boot without waiting
+ * for hal lookups.
+ */
+final class HardwareCapabilities {
+    private static final String TAG = "HardwareCapabilities";
+
+    private static final int VERSION = 1;
+
+    /** Bitmask of supported features */
+    final int features;
+    /** Display modes as reported by the hal, before remapping, or null */
+    final DisplayMode[] displayModes;
+    final Range<Integer> colorBalanceRange;
+    /** Picture adjustment ranges, or null */
+    final List<Range<Float>> pictureAdjustmentRanges;
+
+    HardwareCapabilities(int features, DisplayMode[] displayModes,
+            Range<Integer> colorBalanceRange, List<Range<Float>> pictureAdjustmentRanges) {
+        this.features = features;
+        this.displayModes = displayModes;
+        this.colorBalanceRange = colorBalanceRange;
+        this.pictureAdjustmentRanges = pictureAdjustmentRanges;
+    }
+
+    /**
+     * @return the stored snapshot, or null if there is none or it was taken
+     * on another build
+     */
+    static HardwareCapabilities read(AtomicFile file, String fingerprint) {
+        try (DataInputStream in = new DataInputStream(file.openRead())) {
+            if (in.readInt() != VERSION || !fingerprint.equals(in.readUTF())) {
+                return null;
+            }
+            final int features = in.readInt();
+
+            DisplayMode[] displayModes = null;
+            final int modeCount = in.readInt();
+            if (modeCount >= 0) {
+                displayModes = new DisplayMode[modeCount];
+                for (int i = 0; i < modeCount; i++) {
+                    final int id = in.readInt();
+                    displayModes[i] = new DisplayMode(id, in.readBoolean() ? in.readUTF() : null);
+                }
+            }
+
+            final Range<Integer> colorBalanceRange = new Range<>(in.readInt(), in.readInt());
+
+            List<Range<Float>> pictureAdjustmentRanges = null;
+            final int rangeCount = in.readInt();
+            if (rangeCount >= 0) {
+                pictureAdjustmentRanges = new ArrayList<>(rangeCount);
+                for (int i = 0; i < rangeCount; i++) {
+                    pictureAdjustmentRanges.add(new Range<>(in.readFloat(), in.readFloat()));
+                }
+            }
+
+            return new HardwareCapabilities(features, displayModes, colorBalanceRange,
+                    pictureAdjustmentRanges);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "Failed to read " + file.getBaseFile(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the snapshot, on the calling thread.
+     */
+    void write(AtomicFile file, String fingerprint) {
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            final DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(VERSION);
+            out.writeUTF(fingerprint);
+            out.writeInt(features);
+
+            if (displayModes == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(displayModes.length);
+                for (DisplayMode mode : displayModes) {
+                    out.writeInt(mode.id);
+                    out.writeBoolean(mode.name != null);
+                    if (mode.name != null) {
+                        out.writeUTF(mode.name);
+                    }
+                }
+            }
+
+            out.writeInt(colorBalanceRange.getLower());
+            out.writeInt(colorBalanceRange.getUpper());
+
+            if (pictureAdjustmentRanges == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(pictureAdjustmentRanges.size());
+                for (Range<Float> range : pictureAdjustmentRanges) {
+                    out.writeFloat(range.getLower());
+                    out.writeFloat(range.getUpper());
+                }
+            }
+            out.flush();
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + file.getBaseFile(), e);
+            file.failWrite(fos);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof HardwareCapabilities)) {
+            return false;
+        }
+        final HardwareCapabilities other = (HardwareCapabilities) o;
+        return features == other.features
+                && displayModesEqual(displayModes, other.displayModes)
+                && Objects.equals(colorBalanceRange, other.colorBalanceRange)
+                && Objects.equals(pictureAdjustmentRanges, other.pictureAdjustmentRanges);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(features, colorBalanceRange, pictureAdjustmentRanges);
+    }
+
+    // DisplayMode has no equals()
+    private static boolean displayModesEqual(DisplayMode[] a, DisplayMode[] b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        if (a.length != b.length) {
+            return false;
+        }
+        for (int i = 0; i < a.length; i++) {
+            if (a[i].id != b[i].id || !Objects.equals(a[i].name, b[i].name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "HardwareCapabilities[features=0x" + Integer.toHexString(features) +
+                " displayModes=" + (displayModes == null ? "null" : displayModes.length) +
+                " colorBalanceRange=" + colorBalanceRange +
+                " pictureAdjustmentRanges=" + pictureAdjustmentRanges + "]";
+    }
+}
@@ -16,12 +16,16 @@
  */
 package org.derpfest.hardware;
 
+import android.app.ActivityThread;
 import android.content.Context;
 import android.hidl.base.V1_0.IBase;
+import android.os.Build;
+import android.os.Environment;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.util.ArrayMap;
+import android.util.AtomicFile;
 import android.util.Log;
 import android.util.Range;
 
@@ -47,12 +51,19 @@ import vendor.lineage.touch.V1_0.IKeySwapper;
 import vendor.lineage.touch.V1_0.IStylusMode;
 import vendor.lineage.touch.V1_0.ITouchscreenGesture;
 
+import java.io.File;
+import java.io.PrintWriter;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Manages access to LineageOS hardware extensions
@@ -187,6 +198,27 @@ public final class LineageHardwareManager {
         FEATURE_READING_ENHANCEMENT
     );
 
+    private static final List<Integer> HIDL_FEATURES = Arrays.asList(
+        FEATURE_ADAPTIVE_BACKLIGHT,
+        FEATURE_ANTI_FLICKER,
+        FEATURE_AUTO_CONTRAST,
+        FEATURE_COLOR_BALANCE,
+        FEATURE_COLOR_ENHANCEMENT,
+        FEATURE_DISPLAY_COLOR_CALIBRATION,
+        FEATURE_DISPLAY_MODES,
+        FEATURE_PICTURE_ADJUSTMENT,
+        FEATURE_READING_ENHANCEMENT,
+        FEATURE_SUNLIGHT_ENHANCEMENT,
+        FEATURE_HIGH_TOUCH_POLLING_RATE,
+        FEATURE_HIGH_TOUCH_SENSITIVITY,
+        FEATURE_KEY_DISABLE,
+        FEATURE_KEY_SWAP,
+        FEATURE_TOUCH_HOVERING,
+        FEATURE_TOUCHSCREEN_GESTURES
+    );
+
+    private static final String CAPABILITIES_FILE = "lineage_hardware_capabilities";
+
     private static ILineageHardwareService sService;
     private static LineageHardwareManager sLineageHardwareManagerInstance;
 
@@ -195,8 +227,33 @@ public final class LineageHardwareManager {
     private final ArrayMap<String, String> mDisplayModeMappings = new ArrayMap<String, String>();
     private final boolean mFilterDisplayModes;
 
-    // HIDL hals
-    private HashMap<Integer, IBase> mHIDLMap = new HashMap<Integer, IBase>();
+    // HIDL hals. system_server looks them all up concurrently when the manager
+    // is created, other processes look up a hal on first use. A future
+    // completes with null if the hal isn't available.
+    private final ConcurrentHashMap<Integer, CompletableFuture<IBase>> mHIDLMap =
+            new ConcurrentHashMap<Integer, CompletableFuture<IBase>>();
+    // features whose hal lookup failed, rather than finding no hal
+    private final AtomicInteger mHIDLLookupErrors = new AtomicInteger();
+
+    // latency of HAL calls, or of the service calls they fall back to
+    private final HardwareCallStats mCallStats = new HardwareCallStats(TAG);
+
+    // capabilities stored on a previous boot of this build, then the ones
+    // discovered on this boot. Only kept in system_server.
+    private final AtomicFile mCapabilitiesFile;
+    private volatile HardwareCapabilities mCapabilities;
+    private final ArrayList<CapabilitiesListener> mCapabilitiesListeners =
+            new ArrayList<CapabilitiesListener>();
+
+    /**
+     * Notified when the capabilities discovered at boot differ from the ones
+     * queries were answered with so far.
+     *
+     * @hide
+     */
+    public interface CapabilitiesListener {
+        void onCapabilitiesChanged();
+    }
 
     /**
      * @hide to prevent subclassing from outside of the framework
@@ -208,6 +265,7 @@ public final class LineageHardwareManager {
         } else {
             mContext = context;
         }
+        startHIDLDiscovery();
         sService = getService();
 
         if (!checkService()) {
@@ -228,6 +286,116 @@ public final class LineageHardwareManager {
         }
         mFilterDisplayModes = mContext.getResources().getBoolean(
                 com.android.internal.R.bool.config_filterDisplayModes);
+
+        mCapabilitiesFile = ActivityThread.isSystem() ? new AtomicFile(
+                new File(Environment.getDataSystemDirectory(), CAPABILITIES_FILE)) : null;
+        if (mCapabilitiesFile != null) {
+            mCapabilities = HardwareCapabilities.read(mCapabilitiesFile, Build.FINGERPRINT);
+            // waits for every hal lookup, so it gets a thread of its own
+            final Thread revalidation = new Thread(this::revalidateCapabilities,
+                    TAG + "-revalidation");
+            revalidation.setDaemon(true);
+            revalidation.start();
+        }
+    }
+
+    /**
+     * Discovers the capabilities, compares them with the stored ones and
+     * stores them if they differ. Nothing is stored if any call failed, a
+     * transient failure would otherwise be remembered as a missing feature.
+     */
+    private void revalidateCapabilities() {
+        final HardwareCapabilities current;
+        try {
+            if (!checkService()) {
+                return;
+            }
+            int features = sService.getSupportedFeatures();
+            for (int feature : HIDL_FEATURES) {
+                if (isSupportedHIDL(feature)) {
+                    features |= feature;
+                }
+            }
+            final int lookupErrors = mHIDLLookupErrors.get();
+            if (lookupErrors != 0) {
+                Log.w(TAG, "Not storing capabilities, hal lookups failed for 0x" +
+                        Integer.toHexString(lookupErrors));
+                return;
+            }
+            current = new HardwareCapabilities(features,
+                    getHIDLDisplayModes(), getHIDLColorBalanceRange(),
+                    getHIDLPictureAdjustmentRanges());
+        } catch (RemoteException e) {
+            Log.w(TAG, "Not storing capabilities, discovery failed", e);
+            return;
+        }
+
+        final HardwareCapabilities cached = mCapabilities;
+        if (current.equals(cached)) {
+            return;
+        }
+        current.write(mCapabilitiesFile, Build.FINGERPRINT);
+        mCapabilities = current;
+        if (cached == null) {
+            // queries were answered from the hardware so far
+            return;
+        }
+
+        Log.i(TAG, "Capabilities changed from " + cached + " to " + current);
+        final CapabilitiesListener[] listeners;
+        synchronized (mCapabilitiesListeners) {
+            listeners = mCapabilitiesListeners.toArray(new CapabilitiesListener[0]);
+        }
+        for (CapabilitiesListener listener : listeners) {
+            listener.onCapabilitiesChanged();
+        }
+    }
+
+    /**
+     * Registers a listener, called on a background thread if the capabilities
+     * stored on a previous boot turn out to be stale.
+     *
+     * @hide
+     */
+    public void registerCapabilitiesListener(CapabilitiesListener listener) {
+        synchronized (mCapabilitiesListeners) {
+            if (!mCapabilitiesListeners.contains(listener)) {
+                mCapabilitiesListeners.add(listener);
+            }
+        }
+    }
+
+    /** @hide */
+    public void unregisterCapabilitiesListener(CapabilitiesListener listener) {
+        synchronized (mCapabilitiesListeners) {
+            mCapabilitiesListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Looks up all hals in parallel, getService() blocks until hwservicemanager
+     * knows whether the hal is there. Callers only wait for the hal they need.
+     *
+     * Only done in system_server, which uses most of the hals right at boot.
+     * Apps typically use one or two, so they look them up on first use
+     * rather than paying for a thread and a lookup per hal.
+     */
+    private void startHIDLDiscovery() {
+        if (!ActivityThread.isSystem()) {
+            return;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(HIDL_FEATURES.size(),
+                r -> {
+                    Thread t = new Thread(r, TAG + "-discovery");
+                    t.setDaemon(true);
+                    return t;
+                });
+        for (int feature : HIDL_FEATURES) {
+            mHIDLMap.put(feature, CompletableFuture.supplyAsync(
+                    () -> getHIDLService(feature), executor));
+        }
+        // the threads go away once every lookup is done
+        executor.shutdown();
     }
 
     /**
@@ -235,7 +403,7 @@ public final class LineageHardwareManager {
      * @param context
      * @return {@link LineageHardwareManager}
      */
-    public static LineageHardwareManager getInstance(Context context) {
+    public static synchronized LineageHardwareManager getInstance(Context context) {
         if (sLineageHardwareManagerInstance == null) {
             sLineageHardwareManagerInstance = new LineageHardwareManager(context);
         }
@@ -263,27 +431,72 @@ public final class LineageHardwareManager {
      * @return true if the feature is supported, false otherwise.
      */
     public boolean isSupported(int feature) {
+        final HardwareCapabilities capabilities = mCapabilities;
+        if (capabilities != null) {
+            return (capabilities.features & feature) == feature;
+        }
         return isSupportedHIDL(feature) || isSupportedHWC2(feature);
     }
 
     private boolean isSupportedHIDL(int feature) {
-        if (!mHIDLMap.containsKey(feature)) {
-            mHIDLMap.put(feature, getHIDLService(feature));
+        return getHIDL(feature) != null;
+    }
+
+    /**
+     * @return the hal for the feature, waiting for its lookup if needed, or
+     * null if there is none
+     */
+    private IBase getHIDL(int feature) {
+        if (!HIDL_FEATURES.contains(feature)) {
+            return null;
+        }
+        CompletableFuture<IBase> hal = mHIDLMap.get(feature);
+        if (hal == null) {
+            // not looked up yet, the first caller does it on the calling thread
+            final CompletableFuture<IBase> lookup = new CompletableFuture<IBase>();
+            hal = mHIDLMap.putIfAbsent(feature, lookup);
+            if (hal == null) {
+                hal = lookup;
+                try {
+                    lookup.complete(getHIDLService(feature));
+                } catch (RuntimeException e) {
+                    lookup.completeExceptionally(e);
+                }
+            }
+        }
+        try {
+            return hal.join();
+        } catch (CompletionException e) {
+            // treated as absent, but not stored as such
+            if ((mHIDLLookupErrors.getAndAccumulate(feature, (errors, f) -> errors | f)
+                    & feature) == 0) {
+                Log.w(TAG, "Failed to look up the hal for feature 0x" +
+                        Integer.toHexString(feature), e.getCause());
+            }
+            return null;
         }
-        return mHIDLMap.get(feature) != null;
     }
 
     private boolean isSupportedHWC2(int feature) {
+        if (!checkService()) {
+            return false;
+        }
+        final long start = HardwareCallStats.start();
+        boolean error = true;
         try {
-            if (checkService()) {
-                return feature == (sService.getSupportedFeatures() & feature);
-            }
+            final boolean supported = feature == (sService.getSupportedFeatures() & feature);
+            error = false;
+            return supported;
         } catch (RemoteException e) {
+            return false;
+        } finally {
+            mCallStats.record(HardwareCallStats.GET_SUPPORTED_FEATURES, feature, start, error);
         }
-        return false;
     }
 
     private IBase getHIDLService(int feature) {
+        final long start = HardwareCallStats.start();
+        boolean error = false;
         try {
             switch (feature) {
                 case FEATURE_ADAPTIVE_BACKLIGHT:
@@ -319,7 +532,18 @@ public final class LineageHardwareManager {
                 case FEATURE_TOUCHSCREEN_GESTURES:
                     return ITouchscreenGesture.getService(true);
             }
-        } catch (NoSuchElementException | RemoteException e) {
+        } catch (NoSuchElementException e) {
+            // no hal for the feature
+            error = true;
+        } catch (RemoteException e) {
+            error = true;
+            mHIDLLookupErrors.accumulateAndGet(feature, (errors, f) -> errors | f);
+        } catch (RuntimeException e) {
+            // getHIDL() treats the hal as absent
+            error = true;
+            throw e;
+        } finally {
+            mCallStats.record(HardwareCallStats.GET_SERVICE, feature, start, error);
         }
         return null;
     }
@@ -358,9 +582,15 @@ public final class LineageHardwareManager {
             throw new IllegalArgumentException(feature + " is not a boolean");
         }
 
+        final boolean hidl = isSupportedHIDL(feature);
+        if (!hidl && !checkService()) {
+            return false;
+        }
+        final long start = HardwareCallStats.start();
+        boolean error = false;
         try {
-            if (isSupportedHIDL(feature)) {
-                IBase obj = mHIDLMap.get(feature);
+            if (hidl) {
+                IBase obj = getHIDL(feature);
                 switch (feature) {
                     case FEATURE_ADAPTIVE_BACKLIGHT:
                         IAdaptiveBacklight adaptiveBacklight = (IAdaptiveBacklight) obj;
@@ -396,10 +626,13 @@ public final class LineageHardwareManager {
                         IReadingEnhancement readingEnhancement = (IReadingEnhancement) obj;
                         return readingEnhancement.isEnabled();
                 }
-            } else if (checkService()) {
+            } else {
                 return sService.get(feature);
             }
         } catch (RemoteException e) {
+            error = true;
+        } finally {
+            mCallStats.record(HardwareCallStats.GET, feature, start, error);
         }
         return false;
     }
@@ -419,50 +652,70 @@ public final class LineageHardwareManager {
             throw new IllegalArgumentException(feature + " is not a boolean");
         }
 
+        final boolean hidl = isSupportedHIDL(feature);
+        if (!hidl && !checkService()) {
+            return false;
+        }
+        final long start = HardwareCallStats.start();
+        boolean result = false;
         try {
-            if (isSupportedHIDL(feature)) {
-                IBase obj = mHIDLMap.get(feature);
+            if (hidl) {
+                IBase obj = getHIDL(feature);
                 switch (feature) {
                     case FEATURE_ADAPTIVE_BACKLIGHT:
                         IAdaptiveBacklight adaptiveBacklight = (IAdaptiveBacklight) obj;
-                        return adaptiveBacklight.setEnabled(enable);
+                        result = adaptiveBacklight.setEnabled(enable);
+                        break;
                     case FEATURE_ANTI_FLICKER:
                         IAntiFlicker antiFlicker = (IAntiFlicker) obj;
-                        return antiFlicker.setEnabled(enable);
+                        result = antiFlicker.setEnabled(enable);
+                        break;
                     case FEATURE_AUTO_CONTRAST:
                         IAutoContrast autoContrast = (IAutoContrast) obj;
-                        return autoContrast.setEnabled(enable);
+                        result = autoContrast.setEnabled(enable);
+                        break;
                     case FEATURE_COLOR_ENHANCEMENT:
                         IColorEnhancement colorEnhancement = (IColorEnhancement) obj;
-                        return colorEnhancement.setEnabled(enable);
+                        result = colorEnhancement.setEnabled(enable);
+                        break;
                     case FEATURE_HIGH_TOUCH_POLLING_RATE:
                         IHighTouchPollingRate highTouchPollingRate = (IHighTouchPollingRate) obj;
-                        return highTouchPollingRate.setEnabled(enable);
+                        result = highTouchPollingRate.setEnabled(enable);
+                        break;
                     case FEATURE_HIGH_TOUCH_SENSITIVITY:
                         IGloveMode gloveMode = (IGloveMode) obj;
-                        return gloveMode.setEnabled(enable);
+                        result = gloveMode.setEnabled(enable);
+                        break;
                     case FEATURE_KEY_DISABLE:
                         IKeyDisabler keyDisabler = (IKeyDisabler) obj;
-                        return keyDisabler.setEnabled(enable);
+                        result = keyDisabler.setEnabled(enable);
+                        break;
                     case FEATURE_KEY_SWAP:
                         IKeySwapper keySwapper = (IKeySwapper) obj;
-                        return keySwapper.setEnabled(enable);
+                        result = keySwapper.setEnabled(enable);
+                        break;
                     case FEATURE_SUNLIGHT_ENHANCEMENT:
                         ISunlightEnhancement sunlightEnhancement = (ISunlightEnhancement) obj;
-                        return sunlightEnhancement.setEnabled(enable);
+                        result = sunlightEnhancement.setEnabled(enable);
+                        break;
                     case FEATURE_TOUCH_HOVERING:
                         IStylusMode stylusMode = (IStylusMode) obj;
-                        return stylusMode.setEnabled(enable);
+                        result = stylusMode.setEnabled(enable);
+                        break;
                     case FEATURE_READING_ENHANCEMENT:
                         IReadingEnhancement readingEnhancement = (IReadingEnhancement) obj;
-                        return readingEnhancement.setEnabled(enable);
+                        result = readingEnhancement.setEnabled(enable);
+                        break;
                 }
-            } else if (checkService()) {
-                return sService.set(feature, enable);
+            } else {
+                result = sService.set(feature, enable);
             }
         } catch (RemoteException e) {
+            // counted as a failure, like a false result
+        } finally {
+            mCallStats.record(HardwareCallStats.SET, feature, start, !result);
         }
-        return false;
+        return result;
     }
 
     private int getArrayValue(int[] arr, int idx, int defaultValue) {
@@ -495,17 +748,29 @@ public final class LineageHardwareManager {
     public static final int COLOR_CALIBRATION_MAX_INDEX = 4;
 
     private int[] getDisplayColorCalibrationArray() {
+        final boolean hidl = isSupportedHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION);
+        if (!hidl && !checkService()) {
+            return null;
+        }
+        final long start = HardwareCallStats.start();
+        boolean error = true;
         try {
-            if (isSupportedHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION)) {
+            final int[] result;
+            if (hidl) {
                 IDisplayColorCalibration displayColorCalibration = (IDisplayColorCalibration)
-                        mHIDLMap.get(FEATURE_DISPLAY_COLOR_CALIBRATION);
-                return ArrayUtils.convertToIntArray(displayColorCalibration.getCalibration());
-            } else if (checkService()) {
-                return sService.getDisplayColorCalibration();
+                        getHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION);
+                result = ArrayUtils.convertToIntArray(displayColorCalibration.getCalibration());
+            } else {
+                result = sService.getDisplayColorCalibration();
             }
+            error = result == null;
+            return result;
         } catch (RemoteException e) {
+            return null;
+        } finally {
+            mCallStats.record(HardwareCallStats.GET_CALIBRATION,
+                    FEATURE_DISPLAY_COLOR_CALIBRATION, start, error);
         }
-        return null;
     }
 
     /**
@@ -525,11 +790,17 @@ public final class LineageHardwareManager {
     public int getDisplayColorCalibrationMin() {
         if (isSupportedHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION)) {
             IDisplayColorCalibration displayColorCalibration = (IDisplayColorCalibration)
-                    mHIDLMap.get(FEATURE_DISPLAY_COLOR_CALIBRATION);
+                    getHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION);
+            final long start = HardwareCallStats.start();
+            boolean error = false;
             try {
                 return displayColorCalibration.getMinValue();
             } catch (RemoteException e) {
+                error = true;
                 return 0;
+            } finally {
+                mCallStats.record(HardwareCallStats.GET_CALIBRATION,
+                        FEATURE_DISPLAY_COLOR_CALIBRATION, start, error);
             }
         }
 
@@ -542,11 +813,17 @@ public final class LineageHardwareManager {
     public int getDisplayColorCalibrationMax() {
         if (isSupportedHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION)) {
             IDisplayColorCalibration displayColorCalibration = (IDisplayColorCalibration)
-                    mHIDLMap.get(FEATURE_DISPLAY_COLOR_CALIBRATION);
+                    getHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION);
+            final long start = HardwareCallStats.start();
+            boolean error = false;
             try {
                 return displayColorCalibration.getMaxValue();
             } catch (RemoteException e) {
+                error = true;
                 return 0;
+            } finally {
+                mCallStats.record(HardwareCallStats.GET_CALIBRATION,
+                        FEATURE_DISPLAY_COLOR_CALIBRATION, start, error);
             }
         }
 
@@ -563,43 +840,77 @@ public final class LineageHardwareManager {
      * @return true on success, false otherwise.
      */
     public boolean setDisplayColorCalibration(int[] rgb) {
+        final boolean hidl = isSupportedHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION);
+        if (!hidl && !checkService()) {
+            return false;
+        }
+        final long start = HardwareCallStats.start();
+        boolean error = true;
         try {
-            if (isSupportedHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION)) {
+            final boolean result;
+            if (hidl) {
                 IDisplayColorCalibration displayColorCalibration = (IDisplayColorCalibration)
-                        mHIDLMap.get(FEATURE_DISPLAY_COLOR_CALIBRATION);
-                return displayColorCalibration.setCalibration(
+                        getHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION);
+                result = displayColorCalibration.setCalibration(
                        new ArrayList<Integer>(Arrays.asList(rgb[0], rgb[1], rgb[2])));
-            } else if (checkService()) {
-                return sService.setDisplayColorCalibration(rgb);
+            } else {
+                result = sService.setDisplayColorCalibration(rgb);
             }
+            error = !result;
+            return result;
         } catch (RemoteException e) {
+            return false;
+        } finally {
+            mCallStats.record(HardwareCallStats.SET_CALIBRATION,
+                    FEATURE_DISPLAY_COLOR_CALIBRATION, start, error);
         }
-        return false;
     }
 
     /**
      * @return a list of available display modes on the devices
      */
     public DisplayMode[] getDisplayModes() {
+        final HardwareCapabilities capabilities = mCapabilities;
         DisplayMode[] modes = null;
-        try {
-            if (isSupportedHIDL(FEATURE_DISPLAY_MODES)) {
-                IDisplayModes displayModes = (IDisplayModes) mHIDLMap.get(FEATURE_DISPLAY_MODES);
-                modes = HIDLHelper.fromHIDLModes(displayModes.getDisplayModes());
-            }
-        } catch (RemoteException e) {
-        } finally {
-            if (modes == null) {
-                return null;
+        if (capabilities != null) {
+            modes = capabilities.displayModes;
+        } else {
+            try {
+                modes = getHIDLDisplayModes();
+            } catch (RemoteException e) {
+                // treated as no modes
             }
-            final ArrayList<DisplayMode> remapped = new ArrayList<DisplayMode>();
-            for (DisplayMode mode : modes) {
-                DisplayMode r = remapDisplayMode(mode);
-                if (r != null) {
-                    remapped.add(r);
-                }
+        }
+        if (modes == null) {
+            return null;
+        }
+        final ArrayList<DisplayMode> remapped = new ArrayList<DisplayMode>();
+        for (DisplayMode mode : modes) {
+            DisplayMode r = remapDisplayMode(mode);
+            if (r != null) {
+                remapped.add(r);
             }
-            return remapped.toArray(new DisplayMode[0]);
+        }
+        return remapped.toArray(new DisplayMode[0]);
+    }
+
+    /**
+     * @return the display modes reported by the hal, before remapping
+     */
+    private DisplayMode[] getHIDLDisplayModes() throws RemoteException {
+        if (!isSupportedHIDL(FEATURE_DISPLAY_MODES)) {
+            return null;
+        }
+        final long start = HardwareCallStats.start();
+        boolean error = true;
+        try {
+            IDisplayModes displayModes = (IDisplayModes) getHIDL(FEATURE_DISPLAY_MODES);
+            final DisplayMode[] modes = HIDLHelper.fromHIDLModes(displayModes.getDisplayModes());
+            error = false;
+            return modes;
+        } finally {
+            mCallStats.record(HardwareCallStats.GET_DISPLAY_MODES,
+                    FEATURE_DISPLAY_MODES, start, error);
         }
     }
 
@@ -607,15 +918,21 @@ public final class LineageHardwareManager {
      * @return the currently active display mode
      */
     public DisplayMode getCurrentDisplayMode() {
-        DisplayMode mode = null;
+        if (!isSupportedHIDL(FEATURE_DISPLAY_MODES)) {
+            return null;
+        }
+        final long start = HardwareCallStats.start();
+        boolean error = true;
         try {
-            if (isSupportedHIDL(FEATURE_DISPLAY_MODES)) {
-                IDisplayModes displayModes = (IDisplayModes) mHIDLMap.get(FEATURE_DISPLAY_MODES);
-                mode = HIDLHelper.fromHIDLMode(displayModes.getCurrentDisplayMode());
-            }
+            IDisplayModes displayModes = (IDisplayModes) getHIDL(FEATURE_DISPLAY_MODES);
+            final DisplayMode mode = HIDLHelper.fromHIDLMode(displayModes.getCurrentDisplayMode());
+            error = false;
+            return remapDisplayMode(mode);
         } catch (RemoteException e) {
+            return null;
         } finally {
-            return mode != null ? remapDisplayMode(mode) : null;
+            mCallStats.record(HardwareCallStats.GET_CURRENT_DISPLAY_MODE,
+                    FEATURE_DISPLAY_MODES, start, error);
         }
     }
 
@@ -623,15 +940,21 @@ public final class LineageHardwareManager {
      * @return the default display mode to be set on boot
      */
     public DisplayMode getDefaultDisplayMode() {
-        DisplayMode mode = null;
+        if (!isSupportedHIDL(FEATURE_DISPLAY_MODES)) {
+            return null;
+        }
+        final long start = HardwareCallStats.start();
+        boolean error = true;
         try {
-            if (isSupportedHIDL(FEATURE_DISPLAY_MODES)) {
-                IDisplayModes displayModes = (IDisplayModes) mHIDLMap.get(FEATURE_DISPLAY_MODES);
-                mode = HIDLHelper.fromHIDLMode(displayModes.getDefaultDisplayMode());
-            }
+            IDisplayModes displayModes = (IDisplayModes) getHIDL(FEATURE_DISPLAY_MODES);
+            final DisplayMode mode = HIDLHelper.fromHIDLMode(displayModes.getDefaultDisplayMode());
+            error = false;
+            return remapDisplayMode(mode);
         } catch (RemoteException e) {
+            return null;
         } finally {
-            return mode != null ? remapDisplayMode(mode) : null;
+            mCallStats.record(HardwareCallStats.GET_DEFAULT_DISPLAY_MODE,
+                    FEATURE_DISPLAY_MODES, start, error);
         }
     }
 
@@ -639,14 +962,22 @@ public final class LineageHardwareManager {
      * @return true if setting the mode was successful
      */
     public boolean setDisplayMode(DisplayMode mode, boolean makeDefault) {
+        if (!isSupportedHIDL(FEATURE_DISPLAY_MODES)) {
+            return false;
+        }
+        final long start = HardwareCallStats.start();
+        boolean error = true;
         try {
-            if (isSupportedHIDL(FEATURE_DISPLAY_MODES)) {
-                IDisplayModes displayModes = (IDisplayModes) mHIDLMap.get(FEATURE_DISPLAY_MODES);
-                return displayModes.setDisplayMode(mode.id, makeDefault);
-            }
+            IDisplayModes displayModes = (IDisplayModes) getHIDL(FEATURE_DISPLAY_MODES);
+            final boolean result = displayModes.setDisplayMode(mode.id, makeDefault);
+            error = !result;
+            return result;
         } catch (RemoteException e) {
+            return false;
+        } finally {
+            mCallStats.record(HardwareCallStats.SET_DISPLAY_MODE,
+                    FEATURE_DISPLAY_MODES, start, error);
         }
-        return false;
     }
 
     private DisplayMode remapDisplayMode(DisplayMode in) {
@@ -666,28 +997,54 @@ public final class LineageHardwareManager {
      * @return the available range for color temperature adjustments
      */
     public Range<Integer> getColorBalanceRange() {
+        final HardwareCapabilities capabilities = mCapabilities;
+        if (capabilities != null) {
+            return capabilities.colorBalanceRange;
+        }
         try {
-            if (isSupportedHIDL(FEATURE_COLOR_BALANCE)) {
-                IColorBalance colorBalance = (IColorBalance) mHIDLMap.get(FEATURE_COLOR_BALANCE);
-                return HIDLHelper.fromHIDLRange(colorBalance.getColorBalanceRange());
-            }
+            return getHIDLColorBalanceRange();
         } catch (RemoteException e) {
+            return new Range<Integer>(0, 0);
+        }
+    }
+
+    private Range<Integer> getHIDLColorBalanceRange() throws RemoteException {
+        if (!isSupportedHIDL(FEATURE_COLOR_BALANCE)) {
+            return new Range<Integer>(0, 0);
+        }
+        final long start = HardwareCallStats.start();
+        boolean error = true;
+        try {
+            IColorBalance colorBalance = (IColorBalance) getHIDL(FEATURE_COLOR_BALANCE);
+            final Range<Integer> range =
+                    HIDLHelper.fromHIDLRange(colorBalance.getColorBalanceRange());
+            error = false;
+            return range;
+        } finally {
+            mCallStats.record(HardwareCallStats.GET_RANGES, FEATURE_COLOR_BALANCE, start, error);
         }
-        return new Range<Integer>(0, 0);
     }
 
     /**
      * @return the current color balance value
      */
     public int getColorBalance() {
+        if (!isSupportedHIDL(FEATURE_COLOR_BALANCE)) {
+            return 0;
+        }
+        final long start = HardwareCallStats.start();
+        boolean error = true;
         try {
-            if (isSupportedHIDL(FEATURE_COLOR_BALANCE)) {
-                IColorBalance colorBalance = (IColorBalance) mHIDLMap.get(FEATURE_COLOR_BALANCE);
-                return colorBalance.getColorBalance();
-            }
+            IColorBalance colorBalance = (IColorBalance) getHIDL(FEATURE_COLOR_BALANCE);
+            final int balance = colorBalance.getColorBalance();
+            error = false;
+            return balance;
         } catch (RemoteException e) {
+            return 0;
+        } finally {
+            mCallStats.record(HardwareCallStats.GET_COLOR_BALANCE,
+                    FEATURE_COLOR_BALANCE, start, error);
         }
-        return 0;
     }
 
     /**
@@ -698,14 +1055,22 @@ public final class LineageHardwareManager {
      * @return true if success
      */
     public boolean setColorBalance(int value) {
+        if (!isSupportedHIDL(FEATURE_COLOR_BALANCE)) {
+            return false;
+        }
+        final long start = HardwareCallStats.start();
+        boolean error = true;
         try {
-            if (isSupportedHIDL(FEATURE_COLOR_BALANCE)) {
-                IColorBalance colorBalance = (IColorBalance) mHIDLMap.get(FEATURE_COLOR_BALANCE);
-                return colorBalance.setColorBalance(value);
-            }
+            IColorBalance colorBalance = (IColorBalance) getHIDL(FEATURE_COLOR_BALANCE);
+            final boolean result = colorBalance.setColorBalance(value);
+            error = !result;
+            return result;
         } catch (RemoteException e) {
+            return false;
+        } finally {
+            mCallStats.record(HardwareCallStats.SET_COLOR_BALANCE,
+                    FEATURE_COLOR_BALANCE, start, error);
         }
-        return false;
     }
 
     /**
@@ -714,15 +1079,23 @@ public final class LineageHardwareManager {
      * @return HSIC object with current settings
      */
     public HSIC getPictureAdjustment() {
+        if (!isSupportedHIDL(FEATURE_PICTURE_ADJUSTMENT)) {
+            return null;
+        }
+        final long start = HardwareCallStats.start();
+        boolean error = true;
         try {
-            if (isSupportedHIDL(FEATURE_PICTURE_ADJUSTMENT)) {
-                IPictureAdjustment pictureAdjustment = (IPictureAdjustment)
-                        mHIDLMap.get(FEATURE_PICTURE_ADJUSTMENT);
-                return HIDLHelper.fromHIDLHSIC(pictureAdjustment.getPictureAdjustment());
-            }
+            IPictureAdjustment pictureAdjustment = (IPictureAdjustment)
+                    getHIDL(FEATURE_PICTURE_ADJUSTMENT);
+            final HSIC hsic = HIDLHelper.fromHIDLHSIC(pictureAdjustment.getPictureAdjustment());
+            error = false;
+            return hsic;
         } catch (RemoteException e) {
+            return null;
+        } finally {
+            mCallStats.record(HardwareCallStats.GET_PICTURE_ADJUSTMENT,
+                    FEATURE_PICTURE_ADJUSTMENT, start, error);
         }
-        return null;
     }
 
     /**
@@ -731,15 +1104,23 @@ public final class LineageHardwareManager {
      * @return HSIC object with default settings
      */
     public HSIC getDefaultPictureAdjustment() {
+        if (!isSupportedHIDL(FEATURE_PICTURE_ADJUSTMENT)) {
+            return null;
+        }
+        final long start = HardwareCallStats.start();
+        boolean error = true;
         try {
-            if (isSupportedHIDL(FEATURE_PICTURE_ADJUSTMENT)) {
-                IPictureAdjustment pictureAdjustment = (IPictureAdjustment)
-                        mHIDLMap.get(FEATURE_PICTURE_ADJUSTMENT);
-                return HIDLHelper.fromHIDLHSIC(pictureAdjustment.getDefaultPictureAdjustment());
-            }
+            IPictureAdjustment pictureAdjustment = (IPictureAdjustment)
+                    getHIDL(FEATURE_PICTURE_ADJUSTMENT);
+            final HSIC hsic = HIDLHelper.fromHIDLHSIC(pictureAdjustment.getDefaultPictureAdjustment());
+            error = false;
+            return hsic;
         } catch (RemoteException e) {
+            return null;
+        } finally {
+            mCallStats.record(HardwareCallStats.GET_PICTURE_ADJUSTMENT,
+                    FEATURE_PICTURE_ADJUSTMENT, start, error);
         }
-        return null;
     }
 
     /**
@@ -749,15 +1130,24 @@ public final class LineageHardwareManager {
      * @return true if success
      */
     public boolean setPictureAdjustment(final HSIC hsic) {
+        if (!isSupportedHIDL(FEATURE_PICTURE_ADJUSTMENT)) {
+            return false;
+        }
+        final long start = HardwareCallStats.start();
+        boolean error = true;
         try {
-            if (isSupportedHIDL(FEATURE_PICTURE_ADJUSTMENT)) {
-                IPictureAdjustment pictureAdjustment = (IPictureAdjustment)
-                        mHIDLMap.get(FEATURE_PICTURE_ADJUSTMENT);
-                return pictureAdjustment.setPictureAdjustment(HIDLHelper.toHIDLHSIC(hsic));
-            }
+            IPictureAdjustment pictureAdjustment = (IPictureAdjustment)
+                    getHIDL(FEATURE_PICTURE_ADJUSTMENT);
+            final boolean result =
+                    pictureAdjustment.setPictureAdjustment(HIDLHelper.toHIDLHSIC(hsic));
+            error = !result;
+            return result;
         } catch (RemoteException e) {
+            return false;
+        } finally {
+            mCallStats.record(HardwareCallStats.SET_PICTURE_ADJUSTMENT,
+                    FEATURE_PICTURE_ADJUSTMENT, start, error);
         }
-        return false;
     }
 
     /**
@@ -766,35 +1156,62 @@ public final class LineageHardwareManager {
      * @return range list
      */
     public List<Range<Float>> getPictureAdjustmentRanges() {
+        final HardwareCapabilities capabilities = mCapabilities;
+        if (capabilities != null) {
+            return capabilities.pictureAdjustmentRanges;
+        }
         try {
-            if (isSupportedHIDL(FEATURE_PICTURE_ADJUSTMENT)) {
-                IPictureAdjustment pictureAdjustment = (IPictureAdjustment)
-                        mHIDLMap.get(FEATURE_PICTURE_ADJUSTMENT);
-                return Arrays.asList(
-                        HIDLHelper.fromHIDLRange(pictureAdjustment.getHueRange()),
-                        HIDLHelper.fromHIDLRange(pictureAdjustment.getSaturationRange()),
-                        HIDLHelper.fromHIDLRange(pictureAdjustment.getIntensityRange()),
-                        HIDLHelper.fromHIDLRange(pictureAdjustment.getContrastRange()),
-                        HIDLHelper.fromHIDLRange(pictureAdjustment.getSaturationThresholdRange()));
-            }
+            return getHIDLPictureAdjustmentRanges();
         } catch (RemoteException e) {
+            return null;
+        }
+    }
+
+    private List<Range<Float>> getHIDLPictureAdjustmentRanges() throws RemoteException {
+        if (!isSupportedHIDL(FEATURE_PICTURE_ADJUSTMENT)) {
+            return null;
+        }
+        final long start = HardwareCallStats.start();
+        boolean error = true;
+        try {
+            IPictureAdjustment pictureAdjustment = (IPictureAdjustment)
+                    getHIDL(FEATURE_PICTURE_ADJUSTMENT);
+            final List<Range<Float>> ranges = Arrays.asList(
+                    HIDLHelper.fromHIDLRange(pictureAdjustment.getHueRange()),
+                    HIDLHelper.fromHIDLRange(pictureAdjustment.getSaturationRange()),
+                    HIDLHelper.fromHIDLRange(pictureAdjustment.getIntensityRange()),
+                    HIDLHelper.fromHIDLRange(pictureAdjustment.getContrastRange()),
+                    HIDLHelper.fromHIDLRange(pictureAdjustment.getSaturationThresholdRange()));
+            error = false;
+            return ranges;
+        } finally {
+            mCallStats.record(HardwareCallStats.GET_RANGES,
+                    FEATURE_PICTURE_ADJUSTMENT, start, error);
         }
-        return null;
     }
 
     /**
      * @return a list of available touchscreen gestures on the devices
      */
     public TouchscreenGesture[] getTouchscreenGestures() {
+        if (!isSupportedHIDL(FEATURE_TOUCHSCREEN_GESTURES)) {
+            return null;
+        }
+        final long start = HardwareCallStats.start();
+        boolean error = true;
         try {
-            if (isSupportedHIDL(FEATURE_TOUCHSCREEN_GESTURES)) {
-                ITouchscreenGesture touchscreenGesture = (ITouchscreenGesture)
-                        mHIDLMap.get(FEATURE_TOUCHSCREEN_GESTURES);
-                return HIDLHelper.fromHIDLGestures(touchscreenGesture.getSupportedGestures());
-            }
+            ITouchscreenGesture touchscreenGesture = (ITouchscreenGesture)
+                    getHIDL(FEATURE_TOUCHSCREEN_GESTURES);
+            final TouchscreenGesture[] gestures =
+                    HIDLHelper.fromHIDLGestures(touchscreenGesture.getSupportedGestures());
+            error = false;
+            return gestures;
         } catch (RemoteException e) {
+            return null;
+        } finally {
+            mCallStats.record(HardwareCallStats.GET_GESTURES,
+                    FEATURE_TOUCHSCREEN_GESTURES, start, error);
         }
-        return null;
     }
 
     /**
@@ -802,16 +1219,41 @@ public final class LineageHardwareManager {
      */
     public boolean setTouchscreenGestureEnabled(
             TouchscreenGesture gesture, boolean state) {
+        if (!isSupportedHIDL(FEATURE_TOUCHSCREEN_GESTURES)) {
+            return false;
+        }
+        final long start = HardwareCallStats.start();
+        boolean error = true;
         try {
-            if (isSupportedHIDL(FEATURE_TOUCHSCREEN_GESTURES)) {
-                ITouchscreenGesture touchscreenGesture = (ITouchscreenGesture)
-                        mHIDLMap.get(FEATURE_TOUCHSCREEN_GESTURES);
-                return touchscreenGesture.setGestureEnabled(
-                        HIDLHelper.toHIDLGesture(gesture), state);
-            }
+            ITouchscreenGesture touchscreenGesture = (ITouchscreenGesture)
+                    getHIDL(FEATURE_TOUCHSCREEN_GESTURES);
+            final boolean result = touchscreenGesture.setGestureEnabled(
+                    HIDLHelper.toHIDLGesture(gesture), state);
+            error = !result;
+            return result;
         } catch (RemoteException e) {
+            return false;
+        } finally {
+            mCallStats.record(HardwareCallStats.SET_GESTURE,
+                    FEATURE_TOUCHSCREEN_GESTURES, start, error);
+        }
+    }
+
+    /**
+     * Prints the latency of the hardware calls made by this process, if the
+     * manager was created in it. Unlike {@link #getInstance}, this never
+     * creates the manager, so dumping has no side effects.
+     *
+     * @hide
+     */
+    public static void dumpCallStats(PrintWriter pw) {
+        final LineageHardwareManager manager;
+        synchronized (LineageHardwareManager.class) {
+            manager = sLineageHardwareManagerInstance;
+        }
+        if (manager != null) {
+            manager.mCallStats.dump(pw);
         }
-        return false;
     }
 
     /**
@@ -527,4 +527,19 @@ public class LiveDisplayManager {
             return false;
         }
     }
+
+    /**
+     * Applies all values of a profile at once. Only the values set in the
+     * profile are changed, and the display is updated a single time.
+     *
+     * @param profile
+     * @return true if the profile is supported and will be applied
+     */
+    public boolean applyProfile(LiveDisplayProfile profile) {
+        try {
+            return checkService() && sService.applyProfile(profile);
+        } catch (RemoteException e) {
+            return false;
+        }
+    }
 }
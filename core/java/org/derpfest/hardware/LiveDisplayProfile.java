@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.derpfest.hardware;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Arrays;
+
+/**
+ * A set of LiveDisplay settings which are applied together.
+ *
+ * Only the values which were set on the {@link Builder} are part of the
+ * profile, everything else is left as it is when the profile is applied
+ * with {@link LiveDisplayManager#applyProfile(LiveDisplayProfile)}.
+ */
+public class LiveDisplayProfile implements Parcelable {
+
+    private static final int HAS_MODE = 1 << 0;
+    private static final int HAS_COLOR_ADJUSTMENT = 1 << 1;
+    private static final int HAS_DAY_TEMPERATURE = 1 << 2;
+    private static final int HAS_NIGHT_TEMPERATURE = 1 << 3;
+    private static final int HAS_AUTO_CONTRAST = 1 << 4;
+    private static final int HAS_CABC = 1 << 5;
+    private static final int HAS_COLOR_ENHANCEMENT = 1 << 6;
+    private static final int HAS_AUTO_OUTDOOR_MODE = 1 << 7;
+    private static final int HAS_ANTI_FLICKER = 1 << 8;
+    private static final int HAS_PICTURE_ADJUSTMENT = 1 << 9;
+
+    private final int mFields;
+
+    private final int mMode;
+    private final float[] mColorAdjustment;
+    private final int mDayTemperature;
+    private final int mNightTemperature;
+    private final boolean mAutoContrast;
+    private final boolean mCABC;
+    private final boolean mColorEnhancement;
+    private final boolean mAutoOutdoorMode;
+    private final boolean mAntiFlicker;
+    private final HSIC mPictureAdjustment;
+
+    private LiveDisplayProfile(Builder builder) {
+        mFields = builder.mFields;
+        mMode = builder.mMode;
+        mColorAdjustment = builder.mColorAdjustment;
+        mDayTemperature = builder.mDayTemperature;
+        mNightTemperature = builder.mNightTemperature;
+        mAutoContrast = builder.mAutoContrast;
+        mCABC = builder.mCABC;
+        mColorEnhancement = builder.mColorEnhancement;
+        mAutoOutdoorMode = builder.mAutoOutdoorMode;
+        mAntiFlicker = builder.mAntiFlicker;
+        mPictureAdjustment = builder.mPictureAdjustment;
+    }
+
+    private LiveDisplayProfile(Parcel parcel) {
+        mFields = parcel.readInt();
+        mMode = parcel.readInt();
+        mColorAdjustment = (mFields & HAS_COLOR_ADJUSTMENT) != 0 ?
+                parcel.createFloatArray() : null;
+        mDayTemperature = parcel.readInt();
+        mNightTemperature = parcel.readInt();
+        mAutoContrast = parcel.readInt() != 0;
+        mCABC = parcel.readInt() != 0;
+        mColorEnhancement = parcel.readInt() != 0;
+        mAutoOutdoorMode = parcel.readInt() != 0;
+        mAntiFlicker = parcel.readInt() != 0;
+        mPictureAdjustment = (mFields & HAS_PICTURE_ADJUSTMENT) != 0 ?
+                HSIC.CREATOR.createFromParcel(parcel) : null;
+    }
+
+    public boolean hasMode() {
+        return (mFields & HAS_MODE) != 0;
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    public boolean hasColorAdjustment() {
+        return (mFields & HAS_COLOR_ADJUSTMENT) != 0;
+    }
+
+    public float[] getColorAdjustment() {
+        return mColorAdjustment == null ? null : mColorAdjustment.clone();
+    }
+
+    public boolean hasDayColorTemperature() {
+        return (mFields & HAS_DAY_TEMPERATURE) != 0;
+    }
+
+    public int getDayColorTemperature() {
+        return mDayTemperature;
+    }
+
+    public boolean hasNightColorTemperature() {
+        return (mFields & HAS_NIGHT_TEMPERATURE) != 0;
+    }
+
+    public int getNightColorTemperature() {
+        return mNightTemperature;
+    }
+
+    public boolean hasAutoContrast() {
+        return (mFields & HAS_AUTO_CONTRAST) != 0;
+    }
+
+    public boolean isAutoContrastEnabled() {
+        return mAutoContrast;
+    }
+
+    public boolean hasCABC() {
+        return (mFields & HAS_CABC) != 0;
+    }
+
+    public boolean isCABCEnabled() {
+        return mCABC;
+    }
+
+    public boolean hasColorEnhancement() {
+        return (mFields & HAS_COLOR_ENHANCEMENT) != 0;
+    }
+
+    public boolean isColorEnhancementEnabled() {
+        return mColorEnhancement;
+    }
+
+    public boolean hasAutomaticOutdoorMode() {
+        return (mFields & HAS_AUTO_OUTDOOR_MODE) != 0;
+    }
+
+    public boolean isAutomaticOutdoorModeEnabled() {
+        return mAutoOutdoorMode;
+    }
+
+    public boolean hasAntiFlicker() {
+        return (mFields & HAS_ANTI_FLICKER) != 0;
+    }
+
+    public boolean isAntiFlickerEnabled() {
+        return mAntiFlicker;
+    }
+
+    public boolean hasPictureAdjustment() {
+        return (mFields & HAS_PICTURE_ADJUSTMENT) != 0;
+    }
+
+    public HSIC getPictureAdjustment() {
+        return mPictureAdjustment;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("LiveDisplayProfile={");
+        if (hasMode()) {
+            sb.append(" mode=").append(mMode);
+        }
+        if (hasColorAdjustment()) {
+            sb.append(" colorAdjustment=").append(Arrays.toString(mColorAdjustment));
+        }
+        if (hasDayColorTemperature()) {
+            sb.append(" dayTemperature=").append(mDayTemperature);
+        }
+        if (hasNightColorTemperature()) {
+            sb.append(" nightTemperature=").append(mNightTemperature);
+        }
+        if (hasAutoContrast()) {
+            sb.append(" autoContrast=").append(mAutoContrast);
+        }
+        if (hasCABC()) {
+            sb.append(" cabc=").append(mCABC);
+        }
+        if (hasColorEnhancement()) {
+            sb.append(" colorEnhancement=").append(mColorEnhancement);
+        }
+        if (hasAutomaticOutdoorMode()) {
+            sb.append(" autoOutdoorMode=").append(mAutoOutdoorMode);
+        }
+        if (hasAntiFlicker()) {
+            sb.append(" antiFlicker=").append(mAntiFlicker);
+        }
+        if (hasPictureAdjustment()) {
+            sb.append(" ").append(mPictureAdjustment);
+        }
+        return sb.append(" }").toString();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeInt(mFields);
+        out.writeInt(mMode);
+        if (hasColorAdjustment()) {
+            out.writeFloatArray(mColorAdjustment);
+        }
+        out.writeInt(mDayTemperature);
+        out.writeInt(mNightTemperature);
+        out.writeInt(mAutoContrast ? 1 : 0);
+        out.writeInt(mCABC ? 1 : 0);
+        out.writeInt(mColorEnhancement ? 1 : 0);
+        out.writeInt(mAutoOutdoorMode ? 1 : 0);
+        out.writeInt(mAntiFlicker ? 1 : 0);
+        if (hasPictureAdjustment()) {
+            mPictureAdjustment.writeToParcel(out, flags);
+        }
+    }
+
+    /** @hide */
+    public static final Parcelable.Creator<LiveDisplayProfile> CREATOR =
+            new Parcelable.Creator<LiveDisplayProfile>() {
+        public LiveDisplayProfile createFromParcel(Parcel in) {
+            return new LiveDisplayProfile(in);
+        }
+
+        @Override
+        public LiveDisplayProfile[] newArray(int size) {
+            return new LiveDisplayProfile[size];
+        }
+    };
+
+    /**
+     * Builder class for {@link LiveDisplayProfile} instances.
+     */
+    public static final class Builder {
+        private int mFields;
+
+        private int mMode;
+        private float[] mColorAdjustment;
+        private int mDayTemperature;
+        private int mNightTemperature;
+        private boolean mAutoContrast;
+        private boolean mCABC;
+        private boolean mColorEnhancement;
+        private boolean mAutoOutdoorMode;
+        private boolean mAntiFlicker;
+        private HSIC mPictureAdjustment;
+
+        public Builder setMode(int mode) {
+            mMode = mode;
+            mFields |= HAS_MODE;
+            return this;
+        }
+
+        public Builder setColorAdjustment(float[] adj) {
+            if (adj == null || adj.length != 3) {
+                throw new IllegalArgumentException("Color adjustment must have 3 components");
+            }
+            mColorAdjustment = adj.clone();
+            mFields |= HAS_COLOR_ADJUSTMENT;
+            return this;
+        }
+
+        public Builder setDayColorTemperature(int temperature) {
+            mDayTemperature = temperature;
+            mFields |= HAS_DAY_TEMPERATURE;
+            return this;
+        }
+
+        public Builder setNightColorTemperature(int temperature) {
+            mNightTemperature = temperature;
+            mFields |= HAS_NIGHT_TEMPERATURE;
+            return this;
+        }
+
+        public Builder setAutoContrastEnabled(boolean enabled) {
+            mAutoContrast = enabled;
+            mFields |= HAS_AUTO_CONTRAST;
+            return this;
+        }
+
+        public Builder setCABCEnabled(boolean enabled) {
+            mCABC = enabled;
+            mFields |= HAS_CABC;
+            return this;
+        }
+
+        public Builder setColorEnhancementEnabled(boolean enabled) {
+            mColorEnhancement = enabled;
+            mFields |= HAS_COLOR_ENHANCEMENT;
+            return this;
+        }
+
+        public Builder setAutomaticOutdoorModeEnabled(boolean enabled) {
+            mAutoOutdoorMode = enabled;
+            mFields |= HAS_AUTO_OUTDOOR_MODE;
+            return this;
+        }
+
+        public Builder setAntiFlickerEnabled(boolean enabled) {
+            mAntiFlicker = enabled;
+            mFields |= HAS_ANTI_FLICKER;
+            return this;
+        }
+
+        public Builder setPictureAdjustment(HSIC hsic) {
+            if (hsic == null) {
+                throw new IllegalArgumentException("Picture adjustment must not be null");
+            }
+            mPictureAdjustment = hsic;
+            mFields |= HAS_PICTURE_ADJUSTMENT;
+            return this;
+        }
+
+        public LiveDisplayProfile build() {
+            return new LiveDisplayProfile(this);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derpfest.notification;
+
+import android.content.ContentResolver;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Slog;
+
+import org.derpfest.providers.DerpFestSettings;
+
+import java.util.ArrayList;
+
+/**
+ * Per-package notification LED profiles.
+ *
+ * Profiles are edited in the packed
+ * {@link DerpFestSettings.System#NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES} string. The
+ * system mirrors every profile into a System setting of its own holding
+ * "color;onMs;offMs", so a single profile can be looked up without parsing the
+ * profiles of all other packages. The mirrored packages are additionally listed in
+ * {@link DerpFestSettings.System#NOTIFICATION_LIGHT_PULSE_CUSTOM_PACKAGES} for
+ * callers that need to enumerate them.
+ *
+ * The profiles of the current user are kept in memory, so lookups never go to the
+ * settings provider and an edit of the packed string only rewrites the settings
+ * of the packages it changed.
+ */
+public final class LedProfileStore {
+    private static final String TAG = "LedProfileStore";
+
+    private static final String PREFIX =
+            DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES_PREFIX;
+
+    private final ContentResolver mResolver;
+
+    // Package -> raw and parsed profile, as last mirrored
+    private final ArrayMap<String, String> mProfiles = new ArrayMap<>();
+    private final ArrayMap<String, LedValues> mValues = new ArrayMap<>();
+
+    LedProfileStore(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * @return the LED profile of the given package, or null if it has none
+     */
+    synchronized LedValues getProfile(String packageName) {
+        return mValues.get(packageName);
+    }
+
+    /**
+     * Mirrors the profiles in the packed
+     * {@link DerpFestSettings.System#NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES} string,
+     * which stays the source of truth, into the per-package settings of the current
+     * user. The profiles of packages which were dropped from the string are removed.
+     *
+     * Only the system writes the per-package settings, always through this class,
+     * so they can be rebuilt from the packed string at any time and are neither
+     * validated nor backed up on their own.
+     *
+     * @param full whether to compare against the stored per-package settings, as
+     *             needed when they may have been written by someone else, rather
+     *             than against the profiles mirrored last time
+     */
+    synchronized void sync(boolean full) {
+        final String legacy = Settings.System.getStringForUser(mResolver,
+                DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES,
+                UserHandle.USER_CURRENT);
+
+        final ArrayMap<String, String> profiles = new ArrayMap<>();
+        final ArrayMap<String, LedValues> values = new ArrayMap<>();
+        if (!TextUtils.isEmpty(legacy)) {
+            for (String packageValuesString : legacy.split("\\|")) {
+                String[] packageValues = packageValuesString.split("=");
+                if (packageValues.length != 2) {
+                    Slog.e(TAG, "Error parsing custom led values for unknown package");
+                    continue;
+                }
+                final LedValues ledValues = parseProfile(packageValues[0], packageValues[1]);
+                if (ledValues != null) {
+                    profiles.put(packageValues[0], packageValues[1]);
+                    values.put(packageValues[0], ledValues);
+                }
+            }
+        }
+
+        if (full) {
+            mProfiles.clear();
+            final ArraySet<String> packages = getPackageSet(mResolver, UserHandle.USER_CURRENT);
+            for (int i = 0; i < packages.size(); i++) {
+                final String packageName = packages.valueAt(i);
+                mProfiles.put(packageName, Settings.System.getStringForUser(mResolver,
+                        PREFIX + packageName, UserHandle.USER_CURRENT));
+            }
+        }
+
+        for (int i = 0; i < mProfiles.size(); i++) {
+            final String packageName = mProfiles.keyAt(i);
+            if (!profiles.containsKey(packageName)) {
+                putProfile(packageName, null);
+            }
+        }
+        for (int i = 0; i < profiles.size(); i++) {
+            final String packageName = profiles.keyAt(i);
+            final String profile = profiles.valueAt(i);
+            if (!profile.equals(mProfiles.get(packageName))) {
+                putProfile(packageName, profile);
+            }
+        }
+        if (full || !profiles.keySet().equals(mProfiles.keySet())) {
+            Settings.System.putStringForUser(mResolver,
+                    DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_PACKAGES,
+                    TextUtils.join("|", profiles.keySet()), UserHandle.USER_CURRENT);
+        }
+
+        mProfiles.clear();
+        mProfiles.putAll(profiles);
+        mValues.clear();
+        mValues.putAll(values);
+    }
+
+    /**
+     * Drops the profile of a removed package, from the packed string as well as
+     * from the per-package settings, for any user.
+     *
+     * @return true if the package had a profile
+     */
+    static boolean removePackage(ContentResolver resolver, String packageName, int userId) {
+        final String legacy = Settings.System.getStringForUser(resolver,
+                DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES, userId);
+        if (TextUtils.isEmpty(legacy)) {
+            return false;
+        }
+        final String[] entries = legacy.split("\\|");
+        final ArrayList<String> kept = new ArrayList<>(entries.length);
+        for (String packageValuesString : entries) {
+            if (!packageValuesString.startsWith(packageName + "=")) {
+                kept.add(packageValuesString);
+            }
+        }
+        if (kept.size() == entries.length) {
+            return false;
+        }
+        Settings.System.putStringForUser(resolver,
+                DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES,
+                TextUtils.join("|", kept), userId);
+        Settings.System.putStringForUser(resolver, PREFIX + packageName, null, userId);
+        final ArraySet<String> packages = getPackageSet(resolver, userId);
+        if (packages.remove(packageName)) {
+            Settings.System.putStringForUser(resolver,
+                    DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_PACKAGES,
+                    TextUtils.join("|", packages), userId);
+        }
+        return true;
+    }
+
+    private void putProfile(String packageName, String profile) {
+        Settings.System.putStringForUser(mResolver, PREFIX + packageName, profile,
+                UserHandle.USER_CURRENT);
+    }
+
+    private static LedValues parseProfile(String packageName, String profile) {
+        if (TextUtils.isEmpty(profile)) {
+            return null;
+        }
+        String[] values = profile.split(";");
+        if (values.length != 3) {
+            Slog.e(TAG, "Error parsing custom led values '"
+                    + profile + "' for " + packageName);
+            return null;
+        }
+        try {
+            // color, onMs, offMs
+            return new LedValues(Integer.parseInt(values[0]),
+                    Integer.parseInt(values[1]), Integer.parseInt(values[2]));
+        } catch (NumberFormatException e) {
+            Slog.e(TAG, "Error parsing custom led values '"
+                    + profile + "' for " + packageName);
+            return null;
+        }
+    }
+
+    private static ArraySet<String> getPackageSet(ContentResolver resolver, int userId) {
+        final ArraySet<String> packages = new ArraySet<>();
+        final String list = Settings.System.getStringForUser(resolver,
+                DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_PACKAGES, userId);
+        if (!TextUtils.isEmpty(list)) {
+            for (String packageName : list.split("\\|")) {
+                if (!packageName.isEmpty()) {
+                    packages.add(packageName);
+                }
+            }
+        }
+        return packages;
+    }
+}
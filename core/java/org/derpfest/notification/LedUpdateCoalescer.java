@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derpfest.notification;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+
+/**
+ * Merges bursts of LED refresh requests, such as the ones caused by a restore
+ * writing many light settings or by colors generated for several packages.
+ *
+ * The first request after a quiet period is issued right away. Further requests
+ * within the window are merged into one trailing request at its end.
+ */
+final class LedUpdateCoalescer {
+    static final long WINDOW_MS = 250;
+
+    private final Handler mHandler;
+    private final Runnable mUpdate;
+    private final Runnable mIssuePending = this::issuePending;
+
+    private long mLastIssued = -WINDOW_MS;
+    private boolean mPending;
+
+    // issued requests, and requests merged into another one
+    private long mIssued;
+    private long mSuppressed;
+
+    /**
+     * @param handler the handler the trailing request is issued on
+     * @param update the actual refresh
+     */
+    LedUpdateCoalescer(Handler handler, Runnable update) {
+        mHandler = handler;
+        mUpdate = update;
+    }
+
+    void request() {
+        synchronized (this) {
+            if (mPending) {
+                mSuppressed++;
+                return;
+            }
+            final long now = SystemClock.uptimeMillis();
+            if (now - mLastIssued < WINDOW_MS) {
+                mPending = true;
+                mHandler.postAtTime(mIssuePending, mLastIssued + WINDOW_MS);
+                return;
+            }
+            mLastIssued = now;
+            mIssued++;
+        }
+        // outside the lock, the update calls back into calcLights()
+        mUpdate.run();
+    }
+
+    private void issuePending() {
+        synchronized (this) {
+            mPending = false;
+            mLastIssued = SystemClock.uptimeMillis();
+            mIssued++;
+        }
+        mUpdate.run();
+    }
+
+    synchronized void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "LED updates: issued=" + mIssued + " suppressed=" + mSuppressed +
+                " pending=" + mPending);
+    }
+}
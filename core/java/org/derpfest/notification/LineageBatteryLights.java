@@ -24,6 +24,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.res.Resources;
 import android.database.ContentObserver;
+import android.net.Uri;
 import android.os.BatteryManager;
 import android.os.Handler;
 import android.os.Looper;
@@ -34,10 +35,44 @@ import android.util.Slog;
 
 import org.derpfest.providers.DerpFestSettings;
 
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+
 public final class LineageBatteryLights {
     private final String TAG = "LineageBatteryLights";
     private final boolean DEBUG = false;
 
+    // Settings uris
+    private static final Uri BATTERY_LIGHT_ENABLED_URI =
+            Settings.System.getUriFor(DerpFestSettings.System.BATTERY_LIGHT_ENABLED);
+    private static final Uri BATTERY_LIGHT_FULL_CHARGE_DISABLED_URI =
+            Settings.System.getUriFor(DerpFestSettings.System.BATTERY_LIGHT_FULL_CHARGE_DISABLED);
+    private static final Uri BATTERY_LIGHT_PULSE_URI =
+            Settings.System.getUriFor(DerpFestSettings.System.BATTERY_LIGHT_PULSE);
+    private static final Uri BATTERY_LIGHT_LOW_COLOR_URI =
+            Settings.System.getUriFor(DerpFestSettings.System.BATTERY_LIGHT_LOW_COLOR);
+    private static final Uri BATTERY_LIGHT_MEDIUM_COLOR_URI =
+            Settings.System.getUriFor(DerpFestSettings.System.BATTERY_LIGHT_MEDIUM_COLOR);
+    private static final Uri BATTERY_LIGHT_FULL_COLOR_URI =
+            Settings.System.getUriFor(DerpFestSettings.System.BATTERY_LIGHT_FULL_COLOR);
+    private static final Uri BATTERY_LIGHT_BRIGHTNESS_LEVEL_URI =
+            Settings.System.getUriFor(DerpFestSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL);
+    private static final Uri BATTERY_LIGHT_BRIGHTNESS_LEVEL_ZEN_URI =
+            Settings.System.getUriFor(
+                    DerpFestSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL_ZEN);
+
+    // everything the settings observer reloads
+    private static final List<Uri> OBSERVED_URIS = Arrays.asList(
+            BATTERY_LIGHT_ENABLED_URI,
+            BATTERY_LIGHT_FULL_CHARGE_DISABLED_URI,
+            BATTERY_LIGHT_PULSE_URI,
+            BATTERY_LIGHT_LOW_COLOR_URI,
+            BATTERY_LIGHT_MEDIUM_COLOR_URI,
+            BATTERY_LIGHT_FULL_COLOR_URI,
+            BATTERY_LIGHT_BRIGHTNESS_LEVEL_URI,
+            BATTERY_LIGHT_BRIGHTNESS_LEVEL_ZEN_URI);
+
     // Battery light capabilities.
     private final boolean mHasBatteryLed;
     private final boolean mMultiColorBatteryLed;
@@ -66,11 +101,12 @@ public final class LineageBatteryLights {
     public interface LedUpdater {
         public void update();
     }
-    private final LedUpdater mLedUpdater;
+    private final LedUpdateCoalescer mLedUpdates;
 
     public LineageBatteryLights(Context context, LedUpdater ledUpdater) {
         mContext = context;
-        mLedUpdater = ledUpdater;
+        final Handler handler = new Handler(Looper.getMainLooper());
+        mLedUpdates = new LedUpdateCoalescer(handler, ledUpdater::update);
 
         // Does the device have a battery LED?
         mHasBatteryLed = LightsCapabilities.supports(
@@ -100,12 +136,12 @@ public final class LineageBatteryLights {
                     @Override
                     public void onReceive(Context context, Intent intent) {
                         mZenMode = mNotificationManager.getZenMode();
-                        mLedUpdater.update();
+                        mLedUpdates.request();
                     }
                 }, filter);
         mZenMode = mNotificationManager.getZenMode();
 
-        SettingsObserver observer = new SettingsObserver(new Handler(Looper.getMainLooper()));
+        SettingsObserver observer = new SettingsObserver(handler);
         observer.observe();
     }
 
@@ -113,6 +149,11 @@ public final class LineageBatteryLights {
         return mHasBatteryLed;
     }
 
+    public void dump(PrintWriter pw) {
+        pw.println("LineageBatteryLights:");
+        mLedUpdates.dump(pw, "  ");
+    }
+
     public void calcLights(LedValues ledValues, int level, int status, boolean low) {
         if (DEBUG) {
             Slog.i(TAG, "calcLights input:"
@@ -218,98 +259,112 @@ public final class LineageBatteryLights {
             ContentResolver resolver = mContext.getContentResolver();
 
             // Battery light enabled
-            resolver.registerContentObserver(Settings.System.getUriFor(
-                    DerpFestSettings.System.BATTERY_LIGHT_ENABLED), false, this,
+            resolver.registerContentObserver(BATTERY_LIGHT_ENABLED_URI, false, this,
                     UserHandle.USER_ALL);
 
             // Battery light disabled if fully charged
-            resolver.registerContentObserver(Settings.System.getUriFor(
-                    DerpFestSettings.System.BATTERY_LIGHT_FULL_CHARGE_DISABLED), false, this,
-                    UserHandle.USER_ALL);
+            resolver.registerContentObserver(BATTERY_LIGHT_FULL_CHARGE_DISABLED_URI, false,
+                    this, UserHandle.USER_ALL);
 
             // Low battery pulse
-            resolver.registerContentObserver(Settings.System.getUriFor(
-                    DerpFestSettings.System.BATTERY_LIGHT_PULSE), false, this,
+            resolver.registerContentObserver(BATTERY_LIGHT_PULSE_URI, false, this,
                     UserHandle.USER_ALL);
 
             if (mMultiColorBatteryLed) {
                 // Light colors
-                resolver.registerContentObserver(Settings.System.getUriFor(
-                        DerpFestSettings.System.BATTERY_LIGHT_LOW_COLOR), false, this,
+                resolver.registerContentObserver(BATTERY_LIGHT_LOW_COLOR_URI, false, this,
                         UserHandle.USER_ALL);
-                resolver.registerContentObserver(Settings.System.getUriFor(
-                        DerpFestSettings.System.BATTERY_LIGHT_MEDIUM_COLOR), false, this,
+                resolver.registerContentObserver(BATTERY_LIGHT_MEDIUM_COLOR_URI, false, this,
                         UserHandle.USER_ALL);
-                resolver.registerContentObserver(Settings.System.getUriFor(
-                        DerpFestSettings.System.BATTERY_LIGHT_FULL_COLOR), false, this,
+                resolver.registerContentObserver(BATTERY_LIGHT_FULL_COLOR_URI, false, this,
                         UserHandle.USER_ALL);
             }
 
             if (mCanAdjustBrightness) {
                 // Battery brightness level
-                resolver.registerContentObserver(Settings.System.getUriFor(
-                        DerpFestSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL), false, this,
-                        UserHandle.USER_ALL);
+                resolver.registerContentObserver(BATTERY_LIGHT_BRIGHTNESS_LEVEL_URI, false,
+                        this, UserHandle.USER_ALL);
                 // Battery brightness level in Do Not Disturb mode
-                resolver.registerContentObserver(Settings.System.getUriFor(
-                        DerpFestSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL_ZEN), false, this,
-                        UserHandle.USER_ALL);
+                resolver.registerContentObserver(BATTERY_LIGHT_BRIGHTNESS_LEVEL_ZEN_URI, false,
+                        this, UserHandle.USER_ALL);
             }
 
-            update();
+            update(null);
         }
 
         @Override
-        public void onChange(boolean selfChange) {
-            update();
+        public void onChange(boolean selfChange, Uri uri) {
+            update(uri);
         }
 
-        private void update() {
+        // Reloads the setting behind the given uri, or everything if uri is null.
+        private void update(Uri uri) {
             ContentResolver resolver = mContext.getContentResolver();
             Resources res = mContext.getResources();
 
+            // a change that can't be attributed to one of our settings reloads all of them
+            if (uri != null && !OBSERVED_URIS.contains(uri)) {
+                uri = null;
+            }
+
             // Battery light enabled
-            mLightEnabled = Settings.System.getIntForUser(resolver,
-                    DerpFestSettings.System.BATTERY_LIGHT_ENABLED,
-                    1, UserHandle.USER_CURRENT) != 0;
+            if (uri == null || uri.equals(BATTERY_LIGHT_ENABLED_URI)) {
+                mLightEnabled = Settings.System.getIntForUser(resolver,
+                        DerpFestSettings.System.BATTERY_LIGHT_ENABLED,
+                        1, UserHandle.USER_CURRENT) != 0;
+            }
 
             // Battery light disabled if fully charged
-            mLightFullChargeDisabled = Settings.System.getIntForUser(resolver,
-                    DerpFestSettings.System.BATTERY_LIGHT_FULL_CHARGE_DISABLED,
-                    1, UserHandle.USER_CURRENT) != 0;
+            if (uri == null || uri.equals(BATTERY_LIGHT_FULL_CHARGE_DISABLED_URI)) {
+                mLightFullChargeDisabled = Settings.System.getIntForUser(resolver,
+                        DerpFestSettings.System.BATTERY_LIGHT_FULL_CHARGE_DISABLED,
+                        1, UserHandle.USER_CURRENT) != 0;
+            }
 
             // Low battery pulse
-            mLedPulseEnabled = Settings.System.getIntForUser(resolver,
-                    DerpFestSettings.System.BATTERY_LIGHT_PULSE,
-                    1, UserHandle.USER_CURRENT) != 0;
+            if (uri == null || uri.equals(BATTERY_LIGHT_PULSE_URI)) {
+                mLedPulseEnabled = Settings.System.getIntForUser(resolver,
+                        DerpFestSettings.System.BATTERY_LIGHT_PULSE,
+                        1, UserHandle.USER_CURRENT) != 0;
+            }
 
             // Light colors
-            mBatteryLowARGB = Settings.System.getIntForUser(resolver,
-                    DerpFestSettings.System.BATTERY_LIGHT_LOW_COLOR, res.getInteger(
-                    com.android.internal.R.integer.config_notificationsBatteryLowARGB),
-                    UserHandle.USER_CURRENT);
-            mBatteryMediumARGB = Settings.System.getIntForUser(resolver,
-                    DerpFestSettings.System.BATTERY_LIGHT_MEDIUM_COLOR, res.getInteger(
-                    com.android.internal.R.integer.config_notificationsBatteryMediumARGB),
-                    UserHandle.USER_CURRENT);
-            mBatteryFullARGB = Settings.System.getIntForUser(resolver,
-                    DerpFestSettings.System.BATTERY_LIGHT_FULL_COLOR, res.getInteger(
-                    com.android.internal.R.integer.config_notificationsBatteryFullARGB),
-                    UserHandle.USER_CURRENT);
+            if (uri == null || uri.equals(BATTERY_LIGHT_LOW_COLOR_URI)) {
+                mBatteryLowARGB = Settings.System.getIntForUser(resolver,
+                        DerpFestSettings.System.BATTERY_LIGHT_LOW_COLOR, res.getInteger(
+                        com.android.internal.R.integer.config_notificationsBatteryLowARGB),
+                        UserHandle.USER_CURRENT);
+            }
+            if (uri == null || uri.equals(BATTERY_LIGHT_MEDIUM_COLOR_URI)) {
+                mBatteryMediumARGB = Settings.System.getIntForUser(resolver,
+                        DerpFestSettings.System.BATTERY_LIGHT_MEDIUM_COLOR, res.getInteger(
+                        com.android.internal.R.integer.config_notificationsBatteryMediumARGB),
+                        UserHandle.USER_CURRENT);
+            }
+            if (uri == null || uri.equals(BATTERY_LIGHT_FULL_COLOR_URI)) {
+                mBatteryFullARGB = Settings.System.getIntForUser(resolver,
+                        DerpFestSettings.System.BATTERY_LIGHT_FULL_COLOR, res.getInteger(
+                        com.android.internal.R.integer.config_notificationsBatteryFullARGB),
+                        UserHandle.USER_CURRENT);
+            }
 
             // Adjustable battery LED brightness.
             if (mCanAdjustBrightness) {
                 // Battery brightness level
-                mBatteryBrightnessLevel = Settings.System.getIntForUser(resolver,
-                        DerpFestSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL,
-                        LedValues.LIGHT_BRIGHTNESS_MAXIMUM, UserHandle.USER_CURRENT);
+                if (uri == null || uri.equals(BATTERY_LIGHT_BRIGHTNESS_LEVEL_URI)) {
+                    mBatteryBrightnessLevel = Settings.System.getIntForUser(resolver,
+                            DerpFestSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL,
+                            LedValues.LIGHT_BRIGHTNESS_MAXIMUM, UserHandle.USER_CURRENT);
+                }
                 // Battery brightness level in Do Not Disturb mode
-                mBatteryBrightnessZenLevel = Settings.System.getIntForUser(resolver,
-                        DerpFestSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL_ZEN,
-                        LedValues.LIGHT_BRIGHTNESS_MAXIMUM, UserHandle.USER_CURRENT);
+                if (uri == null || uri.equals(BATTERY_LIGHT_BRIGHTNESS_LEVEL_ZEN_URI)) {
+                    mBatteryBrightnessZenLevel = Settings.System.getIntForUser(resolver,
+                            DerpFestSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL_ZEN,
+                            LedValues.LIGHT_BRIGHTNESS_MAXIMUM, UserHandle.USER_CURRENT);
+                }
             }
 
-            mLedUpdater.update();
+            mLedUpdates.request();
         }
     }
 }
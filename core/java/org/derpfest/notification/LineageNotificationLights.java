@@ -22,31 +22,88 @@ import static android.service.notification.NotificationListenerService.SUPPRESSE
 
 import android.app.KeyguardManager;
 import android.app.Notification;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.ContentResolver;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
 import android.database.ContentObserver;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.provider.Settings.Global;
-import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Slog;
 
+import com.android.internal.os.BackgroundThread;
+
 import org.derpfest.providers.DerpFestSettings;
 import org.derpfest.util.ColorUtils;
 
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class LineageNotificationLights {
     private static final String TAG = "LineageNotificationLights";
     private static final boolean DEBUG = false;
 
+    // Settings uris
+    private static final Uri NOTIFICATION_LIGHT_PULSE_URI =
+            Settings.System.getUriFor(Settings.System.NOTIFICATION_LIGHT_PULSE);
+    private static final Uri NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR_URI =
+            Settings.System.getUriFor(
+                    DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR);
+    private static final Uri NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON_URI =
+            Settings.System.getUriFor(
+                    DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON);
+    private static final Uri NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF_URI =
+            Settings.System.getUriFor(
+                    DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF);
+    private static final Uri NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE_URI =
+            Settings.System.getUriFor(
+                    DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE);
+    private static final Uri NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES_URI =
+            Settings.System.getUriFor(
+                    DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES);
+    private static final Uri NOTIFICATION_LIGHT_SCREEN_ON_URI =
+            Settings.System.getUriFor(DerpFestSettings.System.NOTIFICATION_LIGHT_SCREEN_ON);
+    private static final Uri NOTIFICATION_LIGHT_COLOR_AUTO_URI =
+            Settings.System.getUriFor(DerpFestSettings.System.NOTIFICATION_LIGHT_COLOR_AUTO);
+    private static final Uri NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_URI =
+            Settings.System.getUriFor(
+                    DerpFestSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL);
+    private static final Uri NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN_URI =
+            Settings.System.getUriFor(
+                    DerpFestSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN);
+    private static final Uri ZEN_ALLOW_LIGHTS_URI =
+            Settings.System.getUriFor(DerpFestSettings.System.ZEN_ALLOW_LIGHTS);
+
+    // everything the settings observer reloads
+    private static final List<Uri> OBSERVED_URIS = Arrays.asList(
+            NOTIFICATION_LIGHT_PULSE_URI,
+            NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR_URI,
+            NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON_URI,
+            NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF_URI,
+            NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE_URI,
+            NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES_URI,
+            NOTIFICATION_LIGHT_SCREEN_ON_URI,
+            NOTIFICATION_LIGHT_COLOR_AUTO_URI,
+            NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_URI,
+            NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN_URI,
+            ZEN_ALLOW_LIGHTS_URI);
+
     // Light capabilities
     // Whether the notification light is RGB adjustable.
     private final boolean mMultiColorNotificationLed;
@@ -67,24 +124,44 @@ public final class LineageNotificationLights {
     private int mDefaultNotificationLedOn;
     private int mDefaultNotificationLedOff;
 
-    private final ArrayMap<String, LedValues> mNotificationPulseCustomLedValues;
+    // Custom LED values per package, mirrored from the packed setting
+    private final LedProfileStore mLedProfiles;
+    private boolean mCustomLedValuesEnabled;
     private final Map<String, String> mPackageNameMappings;
+    // Generated colors are produced on a background thread, so all access to the
+    // following three collections must hold mGeneratedColorLock.
+    private final Object mGeneratedColorLock = new Object();
     private final ArrayMap<String, Integer> mGeneratedPackageLedColors = new ArrayMap<>();
+    // Package -> id of the generation request in flight for it
+    private final ArrayMap<String, Integer> mPendingPackageLedColors = new ArrayMap<>();
+    // Packages calcLights() was last asked about, most recent last, used to warm
+    // the color cache when it gets invalidated. NotificationManagerService only
+    // passes the notification currently lighting the LED, so a package whose
+    // notifications are gone drops out once others have taken its place.
+    private static final int MAX_NOTIFYING_PACKAGES = 4;
+    private final ArrayList<String> mNotifyingPackages = new ArrayList<>();
+    private int mLedColorRequestId;
 
     private int mZenMode;
 
+    // Bumped whenever anything calcLights() depends on, besides its
+    // arguments, changes. Invalidates every cached decision.
+    private final AtomicInteger mDecisionGeneration = new AtomicInteger();
+    private final LedDecisionCache mDecisionCache = new LedDecisionCache();
+
     private final SettingsObserver mSettingsObserver;
 
     private final Context mContext;
+    private final Handler mHandler;
+    private final Handler mBackgroundHandler;
 
     public interface LedUpdater {
         public void update();
     }
-    private final LedUpdater mLedUpdater;
+    private final LedUpdateCoalescer mLedUpdates;
 
     public LineageNotificationLights(Context context, LedUpdater ledUpdater) {
         mContext = context;
-        mLedUpdater = ledUpdater;
 
         final Resources res = mContext.getResources();
 
@@ -105,7 +182,7 @@ public final class LineageNotificationLights {
         // or the light is RGB adjustable.
         mCanAdjustBrightness = mHALAdjustableBrightness || mMultiColorNotificationLed;
 
-        mNotificationPulseCustomLedValues = new ArrayMap<String, LedValues>();
+        mLedProfiles = new LedProfileStore(mContext.getContentResolver());
 
         mPackageNameMappings = new ArrayMap<String, String>();
         final String[] defaultMapping = res.getStringArray(
@@ -115,7 +192,45 @@ public final class LineageNotificationLights {
             mPackageNameMappings.put(map[0], map[1]);
         }
 
-        mSettingsObserver = new SettingsObserver(new Handler(Looper.getMainLooper()));
+        mHandler = new Handler(Looper.getMainLooper());
+        mLedUpdates = new LedUpdateCoalescer(mHandler, ledUpdater::update);
+        mBackgroundHandler = BackgroundThread.getHandler();
+
+        // Generate colors ahead of time for new packages, regenerate them
+        // for packages whose icon may have changed and forget removed ones
+        IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.registerReceiverAsUser(new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        if (intent.getData() == null) {
+                            return;
+                        }
+                        final String packageName = intent.getData().getSchemeSpecificPart();
+                        final boolean replacing =
+                                intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
+                        switch (intent.getAction()) {
+                            case Intent.ACTION_PACKAGE_ADDED:
+                                if (!replacing) {
+                                    onPackageChanged(packageName);
+                                }
+                                // else handled by ACTION_PACKAGE_REPLACED
+                                break;
+                            case Intent.ACTION_PACKAGE_REPLACED:
+                                onPackageChanged(packageName);
+                                break;
+                            case Intent.ACTION_PACKAGE_REMOVED:
+                                if (!replacing) {
+                                    onPackageRemoved(packageName, getSendingUserId());
+                                }
+                                break;
+                        }
+                    }
+                }, UserHandle.ALL, filter, null, mHandler);
+
+        mSettingsObserver = new SettingsObserver(mHandler);
         mSettingsObserver.observe();
     }
 
@@ -132,69 +247,124 @@ public final class LineageNotificationLights {
         return keyguardManager != null && keyguardManager.isKeyguardLocked();
     }
 
-    private void parseNotificationPulseCustomValuesString(String customLedValuesString) {
-        if (TextUtils.isEmpty(customLedValuesString)) {
-            return;
-        }
-
-        for (String packageValuesString : customLedValuesString.split("\\|")) {
-            String[] packageValues = packageValuesString.split("=");
-            if (packageValues.length != 2) {
-                Slog.e(TAG, "Error parsing custom led values for unknown package");
-                continue;
-            }
-            String packageName = packageValues[0];
-            String[] values = packageValues[1].split(";");
-            if (values.length != 3) {
-                Slog.e(TAG, "Error parsing custom led values '"
-                        + packageValues[1] + "' for " + packageName);
-                continue;
-            }
-            LedValues ledValues;
-            try {
-                // color, onMs, offMs
-                ledValues = new LedValues(Integer.parseInt(values[0]),
-                        Integer.parseInt(values[1]), Integer.parseInt(values[2]));
-            } catch (NumberFormatException e) {
-                Slog.e(TAG, "Error parsing custom led values '"
-                        + packageValues[1] + "' for " + packageName);
-                continue;
-            }
-            mNotificationPulseCustomLedValues.put(packageName, ledValues);
+    // Served from memory, the profiles are loaded by the settings observer.
+    private LedValues getLedValuesForPackageName(String packageName) {
+        if (!mCustomLedValuesEnabled) {
+            return null;
         }
+        return mLedProfiles.getProfile(mapPackage(packageName));
     }
 
-    private LedValues getLedValuesForPackageName(String packageName) {
-        return mNotificationPulseCustomLedValues.get(mapPackage(packageName));
+    private boolean canGenerateLedColors() {
+        return mAutoGenerateNotificationColor && mMultiColorNotificationLed;
     }
 
+    // Never loads icons on the calling thread. If the color for the package
+    // has not been generated yet, the default color is returned and the
+    // lights are updated again once the generated color is available.
     private int generateLedColorForPackageName(String packageName) {
-        if (!mAutoGenerateNotificationColor) {
-            return mDefaultNotificationColor;
-        }
-        if (!mMultiColorNotificationLed) {
+        if (!canGenerateLedColors()) {
             return mDefaultNotificationColor;
         }
         final String mapping = mapPackage(packageName);
-        int color = mDefaultNotificationColor;
 
-        if (mGeneratedPackageLedColors.containsKey(mapping)) {
-            return mGeneratedPackageLedColors.get(mapping);
+        synchronized (mGeneratedColorLock) {
+            noteNotifyingPackageLocked(mapping);
+            final Integer color = mGeneratedPackageLedColors.get(mapping);
+            if (color != null) {
+                return color;
+            }
+            if (!mPendingPackageLedColors.containsKey(mapping)) {
+                scheduleLedColorGenerationLocked(mapping, true);
+            }
         }
+        return mDefaultNotificationColor;
+    }
+
+    // Supersedes any request already in flight for the package.
+    private void scheduleLedColorGenerationLocked(String mapping, boolean updateLeds) {
+        final int requestId = ++mLedColorRequestId;
+        mPendingPackageLedColors.put(mapping, requestId);
+        mBackgroundHandler.post(() -> {
+            final int color = loadLedColorForPackage(mapping);
+            synchronized (mGeneratedColorLock) {
+                final Integer pending = mPendingPackageLedColors.get(mapping);
+                if (pending == null || pending != requestId) {
+                    // Invalidated or superseded while we were working
+                    return;
+                }
+                mPendingPackageLedColors.remove(mapping);
+                mGeneratedPackageLedColors.put(mapping, color);
+            }
+            mDecisionGeneration.incrementAndGet();
+            if (DEBUG) {
+                Slog.d(TAG, "Generated color #" + Integer.toHexString(color)
+                        + " for " + mapping);
+            }
+            if (updateLeds) {
+                mHandler.post(mLedUpdates::request);
+            }
+        });
+    }
 
+    private int loadLedColorForPackage(String mapping) {
         PackageManager pm = mContext.getPackageManager();
         Drawable icon;
         try {
             icon = pm.getApplicationIcon(mapping);
         } catch (NameNotFoundException e) {
             Slog.e(TAG, e.getMessage(), e);
-            return color;
+            return mDefaultNotificationColor;
+        }
+        return ColorUtils.generateAlertColorFromDrawable(icon);
+    }
+
+    // Drops all generated colors and, if auto generation is enabled, starts
+    // regenerating them for the packages that have been lighting the LED.
+    private void invalidateGeneratedColors() {
+        synchronized (mGeneratedColorLock) {
+            mGeneratedPackageLedColors.clear();
+            mPendingPackageLedColors.clear();
+            if (canGenerateLedColors()) {
+                for (int i = 0; i < mNotifyingPackages.size(); i++) {
+                    scheduleLedColorGenerationLocked(mNotifyingPackages.get(i), true);
+                }
+            }
+        }
+    }
+
+    private void onPackageRemoved(String packageName, int userId) {
+        LedProfileStore.removePackage(mContext.getContentResolver(), packageName, userId);
+        final String mapping = mapPackage(packageName);
+        synchronized (mGeneratedColorLock) {
+            mNotifyingPackages.remove(mapping);
+            mGeneratedPackageLedColors.remove(mapping);
+            mPendingPackageLedColors.remove(mapping);
         }
+    }
 
-        color = ColorUtils.generateAlertColorFromDrawable(icon);
-        mGeneratedPackageLedColors.put(mapping, color);
+    private void noteNotifyingPackageLocked(String mapping) {
+        final int index = mNotifyingPackages.indexOf(mapping);
+        if (index == mNotifyingPackages.size() - 1 && index >= 0) {
+            return;
+        }
+        if (index >= 0) {
+            mNotifyingPackages.remove(index);
+        } else if (mNotifyingPackages.size() == MAX_NOTIFYING_PACKAGES) {
+            mNotifyingPackages.remove(0);
+        }
+        mNotifyingPackages.add(mapping);
+    }
 
-        return color;
+    private void onPackageChanged(String packageName) {
+        if (!canGenerateLedColors()) {
+            return;
+        }
+        final String mapping = mapPackage(packageName);
+        synchronized (mGeneratedColorLock) {
+            mGeneratedPackageLedColors.remove(mapping);
+            scheduleLedColorGenerationLocked(mapping, mNotifyingPackages.contains(mapping));
+        }
     }
 
     private String mapPackage(String pkg) {
@@ -241,7 +411,13 @@ public final class LineageNotificationLights {
 
     public void setZenMode(int zenMode) {
         mZenMode = zenMode;
-        mLedUpdater.update();
+        mDecisionGeneration.incrementAndGet();
+        mLedUpdates.request();
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("LineageNotificationLights:");
+        mLedUpdates.dump(pw, "  ");
     }
 
     // Called by NotificationManagerService updateLightsLocked().
@@ -249,6 +425,33 @@ public final class LineageNotificationLights {
     // updates them according to the active Lineage feature settings.
     public void calcLights(LedValues ledValues, String packageName, Notification n,
             boolean screenActive, int suppressedEffects) {
+        final int generation = mDecisionGeneration.get();
+        synchronized (mDecisionCache) {
+            if (mDecisionCache.apply(n, generation, screenActive, suppressedEffects,
+                    ledValues)) {
+                if (DEBUG) {
+                    Slog.i(TAG, "calcLights cached: ledValues={ " + ledValues + " }");
+                }
+                return;
+            }
+        }
+
+        final boolean inEnabled = ledValues.isEnabled();
+        final int inColor = ledValues.getColor();
+        final int inOnMs = ledValues.getOnMs();
+        final int inOffMs = ledValues.getOffMs();
+        final int inBrightness = ledValues.getBrightness();
+
+        calcLightsUncached(ledValues, packageName, n, screenActive, suppressedEffects);
+
+        synchronized (mDecisionCache) {
+            mDecisionCache.put(n, generation, screenActive, suppressedEffects,
+                    inEnabled, inColor, inOnMs, inOffMs, inBrightness, ledValues);
+        }
+    }
+
+    private void calcLightsUncached(LedValues ledValues, String packageName, Notification n,
+            boolean screenActive, int suppressedEffects) {
         final boolean forcedOn = isForcedOn(n);
         final int forcedBrightness = getForcedBrightness(n);
         final int forcedColor = getForcedColor(n);
@@ -372,116 +575,230 @@ public final class LineageNotificationLights {
         void observe() {
             ContentResolver resolver = mContext.getContentResolver();
 
-            resolver.registerContentObserver(Settings.System.getUriFor(
-                    Settings.System.NOTIFICATION_LIGHT_PULSE),
+            resolver.registerContentObserver(NOTIFICATION_LIGHT_PULSE_URI,
                     false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(Settings.System.getUriFor(
-                    DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR),
+            resolver.registerContentObserver(NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR_URI,
                     false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(Settings.System.getUriFor(
-                    DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON),
+            resolver.registerContentObserver(NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON_URI,
                     false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(Settings.System.getUriFor(
-                    DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF),
+            resolver.registerContentObserver(NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF_URI,
                     false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(Settings.System.getUriFor(
-                    DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE),
+            resolver.registerContentObserver(NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE_URI,
                     false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(Settings.System.getUriFor(
-                    DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES),
+            resolver.registerContentObserver(NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES_URI,
                     false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(Settings.System.getUriFor(
-                    DerpFestSettings.System.NOTIFICATION_LIGHT_SCREEN_ON),
+            resolver.registerContentObserver(NOTIFICATION_LIGHT_SCREEN_ON_URI,
                     false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(Settings.System.getUriFor(
-                    DerpFestSettings.System.NOTIFICATION_LIGHT_COLOR_AUTO), false,
+            resolver.registerContentObserver(NOTIFICATION_LIGHT_COLOR_AUTO_URI, false,
                     this, UserHandle.USER_ALL);
 
             if (mCanAdjustBrightness) {
-                resolver.registerContentObserver(Settings.System.getUriFor(
-                        DerpFestSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL),
+                resolver.registerContentObserver(NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_URI,
                         false, this, UserHandle.USER_ALL);
-                resolver.registerContentObserver(Settings.System.getUriFor(
-                        DerpFestSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN),
+                resolver.registerContentObserver(NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN_URI,
                         false, this, UserHandle.USER_ALL);
             }
 
-            resolver.registerContentObserver(Settings.System.getUriFor(
-                    DerpFestSettings.System.ZEN_ALLOW_LIGHTS), false, this,
+            resolver.registerContentObserver(ZEN_ALLOW_LIGHTS_URI, false, this,
                     UserHandle.USER_ALL);
 
-            update();
+            update(null);
         }
 
         @Override
-        public void onChange(boolean selfChange) {
-            update();
+        public void onChange(boolean selfChange, Uri uri) {
+            update(uri);
         }
 
-        private void update() {
+        // Reloads the setting behind the given uri, or everything if uri is null.
+        private void update(Uri uri) {
             ContentResolver resolver = mContext.getContentResolver();
-            Resources res = mContext.getResources();
+            // a change that can't be attributed to one of our settings reloads all of them
+            if (uri != null && !OBSERVED_URIS.contains(uri)) {
+                uri = null;
+            }
+            boolean invalidateGeneratedColors = uri == null;
 
             // Whether the notification led is enabled
-            mNotificationLedEnabled = Settings.System.getIntForUser(resolver,
-                    Settings.System.NOTIFICATION_LIGHT_PULSE,
-                    0, UserHandle.USER_CURRENT) != 0;
+            if (uri == null || uri.equals(NOTIFICATION_LIGHT_PULSE_URI)) {
+                mNotificationLedEnabled = Settings.System.getIntForUser(resolver,
+                        Settings.System.NOTIFICATION_LIGHT_PULSE,
+                        0, UserHandle.USER_CURRENT) != 0;
+            }
 
             // Automatically pick a color for LED if not set
-            mAutoGenerateNotificationColor = Settings.System.getIntForUser(resolver,
-                    DerpFestSettings.System.NOTIFICATION_LIGHT_COLOR_AUTO,
-                    1, UserHandle.USER_CURRENT) != 0;
+            if (uri == null || uri.equals(NOTIFICATION_LIGHT_COLOR_AUTO_URI)) {
+                mAutoGenerateNotificationColor = Settings.System.getIntForUser(resolver,
+                        DerpFestSettings.System.NOTIFICATION_LIGHT_COLOR_AUTO,
+                        1, UserHandle.USER_CURRENT) != 0;
+                invalidateGeneratedColors = true;
+            }
 
-            // LED default color
-            mDefaultNotificationColor = Settings.System.getIntForUser(resolver,
-                    DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR,
-                    mDefaultNotificationColor, UserHandle.USER_CURRENT);
+            // LED default color, also used when a color can't be generated
+            if (uri == null || uri.equals(NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR_URI)) {
+                mDefaultNotificationColor = Settings.System.getIntForUser(resolver,
+                        DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR,
+                        mDefaultNotificationColor, UserHandle.USER_CURRENT);
+                invalidateGeneratedColors = true;
+            }
 
             // LED default on MS
-            mDefaultNotificationLedOn = Settings.System.getIntForUser(resolver,
-                    DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON,
-                    mDefaultNotificationLedOn, UserHandle.USER_CURRENT);
+            if (uri == null || uri.equals(NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON_URI)) {
+                mDefaultNotificationLedOn = Settings.System.getIntForUser(resolver,
+                        DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON,
+                        mDefaultNotificationLedOn, UserHandle.USER_CURRENT);
+            }
 
             // LED default off MS
-            mDefaultNotificationLedOff = Settings.System.getIntForUser(resolver,
-                    DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF,
-                    mDefaultNotificationLedOff, UserHandle.USER_CURRENT);
-
-            // LED generated notification colors
-            mGeneratedPackageLedColors.clear();
+            if (uri == null || uri.equals(NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF_URI)) {
+                mDefaultNotificationLedOff = Settings.System.getIntForUser(resolver,
+                        DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF,
+                        mDefaultNotificationLedOff, UserHandle.USER_CURRENT);
+            }
 
-            // LED custom notification colors
-            mNotificationPulseCustomLedValues.clear();
-            if (Settings.System.getIntForUser(resolver,
-                    DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE, 0,
-                    UserHandle.USER_CURRENT) != 0) {
-                parseNotificationPulseCustomValuesString(Settings.System.getStringForUser(
-                        resolver, DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES,
-                        UserHandle.USER_CURRENT));
+            // LED custom notification colors. The packed values are the source
+            // of truth, only the per-package settings which changed are rewritten.
+            // On a full reload they are compared with what is stored instead.
+            if (uri == null || uri.equals(NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES_URI)) {
+                mLedProfiles.sync(uri == null);
+            }
+            if (uri == null || uri.equals(NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE_URI)) {
+                mCustomLedValuesEnabled = Settings.System.getIntForUser(resolver,
+                        DerpFestSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE, 0,
+                        UserHandle.USER_CURRENT) != 0;
             }
 
             // Notification lights with screen on
-            mScreenOnEnabled = (Settings.System.getIntForUser(resolver,
-                    DerpFestSettings.System.NOTIFICATION_LIGHT_SCREEN_ON, 0,
-                    UserHandle.USER_CURRENT) != 0);
+            if (uri == null || uri.equals(NOTIFICATION_LIGHT_SCREEN_ON_URI)) {
+                mScreenOnEnabled = (Settings.System.getIntForUser(resolver,
+                        DerpFestSettings.System.NOTIFICATION_LIGHT_SCREEN_ON, 0,
+                        UserHandle.USER_CURRENT) != 0);
+            }
 
             // Adjustable notification LED brightness.
             if (mCanAdjustBrightness) {
                 // Normal brightness.
-                mNotificationLedBrightnessLevel = Settings.System.getIntForUser(resolver,
-                        DerpFestSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL,
-                        LedValues.LIGHT_BRIGHTNESS_MAXIMUM, UserHandle.USER_CURRENT);
+                if (uri == null || uri.equals(NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_URI)) {
+                    mNotificationLedBrightnessLevel = Settings.System.getIntForUser(resolver,
+                            DerpFestSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL,
+                            LedValues.LIGHT_BRIGHTNESS_MAXIMUM, UserHandle.USER_CURRENT);
+                }
                 // Brightness in Do Not Disturb mode.
-                mNotificationLedBrightnessLevelZen = Settings.System.getIntForUser(
-                        resolver, DerpFestSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN,
-                        LedValues.LIGHT_BRIGHTNESS_MAXIMUM, UserHandle.USER_CURRENT);
+                if (uri == null || uri.equals(NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN_URI)) {
+                    mNotificationLedBrightnessLevelZen = Settings.System.getIntForUser(
+                            resolver,
+                            DerpFestSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN,
+                            LedValues.LIGHT_BRIGHTNESS_MAXIMUM, UserHandle.USER_CURRENT);
+                }
             }
 
-            mZenAllowLights = Settings.System.getIntForUser(resolver,
+            if (uri == null || uri.equals(ZEN_ALLOW_LIGHTS_URI)) {
+                mZenAllowLights = Settings.System.getIntForUser(resolver,
                         DerpFestSettings.System.ZEN_ALLOW_LIGHTS,
                         1, UserHandle.USER_CURRENT) != 0;
+            }
+
+            // LED generated notification colors
+            if (invalidateGeneratedColors) {
+                invalidateGeneratedColors();
+            }
+
+            mDecisionGeneration.incrementAndGet();
+            mLedUpdates.request();
+        }
+    }
 
-            mLedUpdater.update();
+    /**
+     * Remembers the outcome of the last few calcLights() calls, so repeated LED
+     * updates for the same posted notification don't have to unparcel its extras
+     * and walk the decision logic again. Notifications are matched by identity,
+     * which changes every time a notification is (re)posted.
+     */
+    private static final class LedDecisionCache {
+        private static final int SIZE = 4;
+
+        private final Entry[] mEntries = new Entry[SIZE];
+        private int mNext;
+
+        private static final class Entry {
+            WeakReference<Notification> mNotification;
+            int mGeneration;
+            boolean mScreenActive;
+            int mSuppressedEffects;
+
+            // Requested values
+            boolean mInEnabled;
+            int mInColor;
+            int mInOnMs;
+            int mInOffMs;
+            int mInBrightness;
+
+            // Resolved values
+            boolean mEnabled;
+            int mColor;
+            int mOnMs;
+            int mOffMs;
+            int mBrightness;
+        }
+
+        LedDecisionCache() {
+            for (int i = 0; i < SIZE; i++) {
+                mEntries[i] = new Entry();
+            }
+        }
+
+        boolean apply(Notification n, int generation, boolean screenActive,
+                int suppressedEffects, LedValues ledValues) {
+            for (Entry e : mEntries) {
+                if (e.mNotification == null || e.mNotification.get() != n
+                        || e.mGeneration != generation
+                        || e.mScreenActive != screenActive
+                        || e.mSuppressedEffects != suppressedEffects
+                        || e.mInEnabled != ledValues.isEnabled()
+                        || e.mInColor != ledValues.getColor()
+                        || e.mInOnMs != ledValues.getOnMs()
+                        || e.mInOffMs != ledValues.getOffMs()
+                        || e.mInBrightness != ledValues.getBrightness()) {
+                    continue;
+                }
+                ledValues.setEnabled(e.mEnabled);
+                ledValues.setColor(e.mColor);
+                ledValues.setOnMs(e.mOnMs);
+                ledValues.setOffMs(e.mOffMs);
+                ledValues.setBrightness(e.mBrightness);
+                return true;
+            }
+            return false;
+        }
+
+        void put(Notification n, int generation, boolean screenActive,
+                int suppressedEffects, boolean inEnabled, int inColor, int inOnMs,
+                int inOffMs, int inBrightness, LedValues result) {
+            Entry e = null;
+            for (Entry candidate : mEntries) {
+                if (candidate.mNotification != null && candidate.mNotification.get() == n) {
+                    e = candidate;
+                    break;
+                }
+            }
+            if (e == null) {
+                e = mEntries[mNext];
+                mNext = (mNext + 1) % SIZE;
+                e.mNotification = new WeakReference<>(n);
+            }
+            e.mGeneration = generation;
+            e.mScreenActive = screenActive;
+            e.mSuppressedEffects = suppressedEffects;
+            e.mInEnabled = inEnabled;
+            e.mInColor = inColor;
+            e.mInOnMs = inOnMs;
+            e.mInOffMs = inOffMs;
+            e.mInBrightness = inBrightness;
+            e.mEnabled = result.isEnabled();
+            e.mColor = result.getColor();
+            e.mOnMs = result.getOnMs();
+            e.mOffMs = result.getOffMs();
+            e.mBrightness = result.getBrightness();
         }
     }
 }
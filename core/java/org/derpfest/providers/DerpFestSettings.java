@@ -363,11 +363,32 @@ public final class DerpFestSettings {
 
         /**
          * Which custom LED values to use for the notification pulse LED.
+         * Packed format: "package=color;onMs;offMs|...". The system mirrors every
+         * entry into its own per-package setting for lookups.
          * 
          * @hide
          */
         public static final String NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES = "notification_light_pulse_custom_values";
 
+        /**
+         * Prefix of the per-package custom notification LED values. The setting named
+         * prefix + package name holds "color;onMs;offMs" for that package. Written by
+         * the system only, mirroring {@link #NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES}.
+         *
+         * @hide
+         */
+        public static final String NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES_PREFIX =
+                "notification_light_pulse_custom_values:";
+
+        /**
+         * List of packages that have custom notification LED values, separated by '|'.
+         * Written by the system only.
+         *
+         * @hide
+         */
+        public static final String NOTIFICATION_LIGHT_PULSE_CUSTOM_PACKAGES =
+                "notification_light_pulse_custom_packages";
+
         /**
          * Whether we automatically generate notification LED colors or just
          * use the boring default.
@@ -57,6 +57,28 @@ public class ColorUtils {
      * @return array of Lab values of size 3
      */
     public static float[] convertRGBtoLAB(int rgb) {
+        float[] lab = convertRGBtoLAB(Color.red(rgb) / 255.f, //R 0..1
+                Color.green(rgb) / 255.f, //G 0..1
+                Color.blue(rgb) / 255.f); //B 0..1
+
+        lab[0] = (2.55f * lab[0] + .5f);
+        lab[1] = (lab[1] + .5f);
+        lab[2] = (lab[2] + .5f);
+
+        return lab;
+    }
+
+    /**
+     * Converts sRGB components into CIE L*a*b space. Unlike {@link #convertRGBtoLAB(int)},
+     * the components are not limited to 8 bits and the result is not rescaled, L is
+     * in the range 0..100.
+     *
+     * @param r red component 0..1
+     * @param g green component 0..1
+     * @param b blue component 0..1
+     * @return array of Lab values of size 3
+     */
+    public static float[] convertRGBtoLAB(float r, float g, float b) {
         float[] lab = new float[3];
         float fx, fy, fz;
         float eps = 216.f / 24389.f;
@@ -66,11 +88,6 @@ public class ColorUtils {
         float Yr = 1.0f;
         float Zr = 0.825211f;
 
-        // RGB to XYZ
-        float r = Color.red(rgb) / 255.f; //R 0..1
-        float g = Color.green(rgb) / 255.f; //G 0..1
-        float b = Color.blue(rgb) / 255.f; //B 0..1
-
         // assuming sRGB (D65)
         if (r <= 0.04045)
             r = r / 12;
@@ -111,13 +128,9 @@ public class ColorUtils {
         else
             fz = (float) ((k * zr + 16.) / 116);
 
-        float Ls = (116 * fy) - 16;
-        float as = 500 * (fx - fy);
-        float bs = 200 * (fy - fz);
-
-        lab[0] = (2.55f * Ls + .5f);
-        lab[1] = (as + .5f);
-        lab[2] = (bs + .5f);
+        lab[0] = (116 * fy) - 16;
+        lab[1] = 500 * (fx - fy);
+        lab[2] = 200 * (fy - fz);
 
         return lab;
     }
@@ -25,14 +25,33 @@ import android.os.UserHandle;
 import org.derpfest.server.common.UserContentObserver;
 
 import android.provider.Settings;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 
 import java.io.PrintWriter;
+import java.util.List;
+import java.util.Objects;
 
 public abstract class LineageBaseFeature {
     protected final Context mContext;
     protected final Handler mHandler;
     protected SettingsObserver mSettingsObserver;
 
+    // Raw values of the observed settings for the current user, read through
+    // on first access. Settings which aren't observed are never cached, since
+    // nothing would tell us when they change.
+    private final Object mCacheLock = new Object();
+    private final ArraySet<Uri> mRegisteredSettings = new ArraySet<>();
+    private final ArraySet<String> mObservedSettings = new ArraySet<>();
+    private final ArrayMap<String, String> mSettingsCache = new ArrayMap<>();
+    // bumped on every invalidation, so a read racing with a change isn't cached
+    private int mCacheGeneration = 0;
+
+    // values of the observed settings when onSettingsChanged last ran for them,
+    // change notifications which don't change anything are dropped
+    private final ArrayMap<String, String> mHandledSettings = new ArrayMap<>();
+    private long mSettingsChangesSkipped = 0;
+
     public LineageBaseFeature(Context context, Handler handler) {
         mContext = context;
         mHandler = handler;
@@ -52,41 +71,158 @@ public abstract class LineageBaseFeature {
     }
 
     protected final void registerSettings(Uri... settings) {
+        synchronized (mCacheLock) {
+            for (Uri uri : settings) {
+                mRegisteredSettings.add(uri);
+                final String name = getSystemSettingName(uri);
+                if (name != null) {
+                    mObservedSettings.add(name);
+                }
+            }
+        }
         mSettingsObserver.register(settings);
     }
 
     protected final boolean getBoolean(String setting, boolean defaultValue) {
-        return Settings.System.getIntForUser(mContext.getContentResolver(),
-                setting, (defaultValue ? 1 : 0), UserHandle.USER_CURRENT) == 1;
+        return getInt(setting, (defaultValue ? 1 : 0)) == 1;
     }
 
     protected final void putBoolean(String setting, boolean value) {
-        Settings.System.putIntForUser(mContext.getContentResolver(),
-                setting, (value ? 1 : 0), UserHandle.USER_CURRENT);
+        putInt(setting, (value ? 1 : 0));
     }
 
     protected final int getInt(String setting, int defaultValue) {
-        return Settings.System.getIntForUser(mContext.getContentResolver(),
-                setting, defaultValue, UserHandle.USER_CURRENT);
+        // same parsing as Settings.System.getIntForUser
+        final String value = getString(setting);
+        try {
+            return value != null ? Integer.parseInt(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
     }
 
     protected final void putInt(String setting, int value) {
-        Settings.System.putIntForUser(mContext.getContentResolver(),
-                setting, value, UserHandle.USER_CURRENT);
+        putString(setting, Integer.toString(value));
     }
 
     protected final String getString(String setting) {
-        return Settings.System.getStringForUser(mContext.getContentResolver(),
+        final int generation;
+        synchronized (mCacheLock) {
+            final int index = mSettingsCache.indexOfKey(setting);
+            if (index >= 0) {
+                return mSettingsCache.valueAt(index);
+            }
+            generation = mCacheGeneration;
+        }
+
+        final String value = Settings.System.getStringForUser(mContext.getContentResolver(),
                 setting, UserHandle.USER_CURRENT);
+
+        synchronized (mCacheLock) {
+            if (generation == mCacheGeneration && mObservedSettings.contains(setting)) {
+                mSettingsCache.put(setting, value);
+            }
+        }
+        return value;
     }
 
     protected final void putString(String setting, String value) {
         Settings.System.putStringForUser(mContext.getContentResolver(),
                 setting, value, UserHandle.USER_CURRENT);
+        // don't wait for the observer, the next read should see the new value
+        invalidateSetting(setting);
+    }
+
+    /**
+     * @return true if the uri was registered through {@link #registerSettings}
+     */
+    protected final boolean isRegisteredSetting(Uri uri) {
+        synchronized (mCacheLock) {
+            return mRegisteredSettings.contains(uri);
+        }
+    }
+
+    /**
+     * Runs onSettingsChanged for the given uri, or for all settings if it is
+     * null. Skipped if the uri wasn't registered by this feature, or if it
+     * points to an observed setting which still has the value it had when it
+     * was last handled.
+     */
+    protected final void dispatchSettingsChanged(Uri uri) {
+        if (uri != null && !isRegisteredSetting(uri)) {
+            return;
+        }
+        if (uri == null) {
+            final String[] observed;
+            synchronized (mCacheLock) {
+                observed = mObservedSettings.toArray(new String[0]);
+            }
+            for (String setting : observed) {
+                final String value = getString(setting);
+                synchronized (mCacheLock) {
+                    mHandledSettings.put(setting, value);
+                }
+            }
+        } else {
+            final String setting = getSystemSettingName(uri);
+            final boolean observed;
+            synchronized (mCacheLock) {
+                observed = setting != null && mObservedSettings.contains(setting);
+            }
+            if (observed) {
+                final String value = getString(setting);
+                synchronized (mCacheLock) {
+                    final int index = mHandledSettings.indexOfKey(setting);
+                    if (index >= 0 && Objects.equals(mHandledSettings.valueAt(index), value)) {
+                        mSettingsChangesSkipped++;
+                        return;
+                    }
+                    mHandledSettings.put(setting, value);
+                }
+            }
+        }
+        onSettingsChanged(uri);
+    }
+
+    protected final long getSettingsChangesSkipped() {
+        synchronized (mCacheLock) {
+            return mSettingsChangesSkipped;
+        }
+    }
+
+    private void invalidateSetting(String setting) {
+        synchronized (mCacheLock) {
+            mCacheGeneration++;
+            if (setting != null) {
+                mSettingsCache.remove(setting);
+            } else {
+                mSettingsCache.clear();
+            }
+        }
+    }
+
+    /**
+     * @return the name of the Settings.System entry the uri points to, or null
+     */
+    private static String getSystemSettingName(Uri uri) {
+        if (uri == null || !Settings.AUTHORITY.equals(uri.getAuthority())) {
+            return null;
+        }
+        final List<String> segments = uri.getPathSegments();
+        if (segments.size() != 2 || !"system".equals(segments.get(0))) {
+            return null;
+        }
+        return segments.get(1);
     }
 
     public void onDestroy() {
         mSettingsObserver.unregister();
+        synchronized (mCacheLock) {
+            mRegisteredSettings.clear();
+            mObservedSettings.clear();
+            mHandledSettings.clear();
+        }
+        invalidateSetting(null);
     }
 
     final class SettingsObserver extends UserContentObserver {
@@ -111,12 +247,15 @@ public abstract class LineageBaseFeature {
 
         @Override
         protected void update() {
-            onSettingsChanged(null);
+            // user switch, nothing cached for the previous user is valid
+            invalidateSetting(null);
+            dispatchSettingsChanged(null);
         }
 
         @Override
         public void onChange(boolean selfChange, Uri uri) {
-            onSettingsChanged(uri);
+            invalidateSetting(getSystemSettingName(uri));
+            dispatchSettingsChanged(uri);
         }
     }
 }
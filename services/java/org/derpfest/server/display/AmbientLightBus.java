@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.derpfest.server.display;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener2;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.ArrayMap;
+
+import java.io.PrintWriter;
+
+/**
+ * The one light sensor registration shared by all LiveDisplay features.
+ *
+ * Subscribers get every raw sample, in batches, on the bus looper and apply
+ * their own window, threshold and hysteresis (see {@link AmbientLuxObserver}).
+ * The sensor is only registered while there is at least one subscriber, with
+ * the shortest batching latency any of them asked for.
+ */
+final class AmbientLightBus {
+
+    interface Listener {
+        /**
+         * Called on the bus looper with the samples received since the last call.
+         * The arrays are reused and only valid during the call.
+         *
+         * @param times sample timestamps in the elapsedRealtime() time base
+         */
+        void onLuxSamples(long[] times, float[] lux, int count);
+
+        /**
+         * Called on the bus looper once a {@link #flush()} has completed, after
+         * every sample the sensor held back at that point has been delivered.
+         * Flushes requested by any subscriber are reported to all of them.
+         */
+        void onFlushCompleted();
+    }
+
+    private final Sensor mLightSensor;
+    private final SensorManager mSensorManager;
+    private final int mLightSensorRate;
+    private final Handler mHandler;
+
+    // subscribers and the batching latency they can live with, in ms
+    private final ArrayMap<Listener, Integer> mListeners = new ArrayMap<>();
+    private Listener[] mDispatchList = new Listener[0];
+
+    // latency of the current registration, or -1 if not registered
+    private int mRegisteredLatency = -1;
+
+    // samples delivered by the sensor but not dispatched yet, everything
+    // the sensor FIFO hands over in one go is dispatched in a single pass
+    private static final int PENDING_SIZE = 64;
+    private final long[] mPendingTimes = new long[PENDING_SIZE];
+    private final float[] mPendingLux = new float[PENDING_SIZE];
+    private int mPendingCount = 0;
+
+    // handed to subscribers, so new samples can come in while they run
+    private final long[] mDispatchTimes = new long[PENDING_SIZE];
+    private final float[] mDispatchLux = new float[PENDING_SIZE];
+
+    private long mRegistrations;
+    private long mBatches;
+    private long mSamples;
+    private long mFlushes;
+
+    AmbientLightBus(Context context, Looper looper) {
+        mHandler = new Handler(looper);
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        mLightSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_LIGHT);
+        mLightSensorRate = context.getResources().getInteger(
+                com.android.internal.R.integer.config_autoBrightnessLightSensorRate);
+    }
+
+    Looper getLooper() {
+        return mHandler.getLooper();
+    }
+
+    /**
+     * @return the configured sensor rate in ms
+     */
+    int getSensorRate() {
+        return mLightSensorRate;
+    }
+
+    /**
+     * Starts delivering samples to the listener, or updates its latency if it is
+     * already subscribed.
+     *
+     * @param maxLatency how long, in ms, samples may be held back in the sensor FIFO
+     */
+    synchronized void subscribe(Listener listener, int maxLatency) {
+        mListeners.put(listener, Math.max(0, maxLatency));
+        updateRegistrationLocked();
+    }
+
+    synchronized void unsubscribe(Listener listener) {
+        if (mListeners.remove(listener) != null) {
+            updateRegistrationLocked();
+        }
+    }
+
+    /**
+     * Asks the sensor to hand over the samples it is holding back.
+     *
+     * @return true if {@link Listener#onFlushCompleted()} will be called, false if
+     * the sensor isn't registered or can't flush
+     */
+    synchronized boolean flush() {
+        if (mRegisteredLatency < 0) {
+            return false;
+        }
+        mFlushes++;
+        return mSensorManager.flush(mSensorListener);
+    }
+
+    private void updateRegistrationLocked() {
+        mDispatchList = mListeners.keySet().toArray(new Listener[0]);
+
+        if (mListeners.isEmpty()) {
+            if (mRegisteredLatency >= 0) {
+                mSensorManager.unregisterListener(mSensorListener);
+                mHandler.removeCallbacks(mDispatchRunnable);
+                mPendingCount = 0;
+                mRegisteredLatency = -1;
+            }
+            return;
+        }
+
+        int latency = Integer.MAX_VALUE;
+        for (int i = 0; i < mListeners.size(); i++) {
+            latency = Math.min(latency, mListeners.valueAt(i));
+        }
+        if (latency == mRegisteredLatency) {
+            return;
+        }
+        if (mRegisteredLatency >= 0) {
+            mSensorManager.unregisterListener(mSensorListener);
+        }
+        mSensorManager.registerListener(mSensorListener, mLightSensor,
+                mLightSensorRate * 1000, latency * 1000, mHandler);
+        mRegisteredLatency = latency;
+        mRegistrations++;
+    }
+
+    private final Runnable mDispatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final Listener[] listeners;
+            final int count;
+            synchronized (AmbientLightBus.this) {
+                count = mPendingCount;
+                if (count == 0) {
+                    return;
+                }
+                System.arraycopy(mPendingTimes, 0, mDispatchTimes, 0, count);
+                System.arraycopy(mPendingLux, 0, mDispatchLux, 0, count);
+                mPendingCount = 0;
+                mBatches++;
+                mSamples += count;
+                listeners = mDispatchList;
+            }
+            // outside the lock, subscribers may unsubscribe from their callbacks
+            for (Listener listener : listeners) {
+                listener.onLuxSamples(mDispatchTimes, mDispatchLux, count);
+            }
+        }
+    };
+
+    private final SensorEventListener2 mSensorListener = new SensorEventListener2() {
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            final boolean full;
+            synchronized (AmbientLightBus.this) {
+                full = mPendingCount == PENDING_SIZE;
+            }
+            if (full) {
+                // the FIFO handed over more than fits, dispatch what we have
+                // first, we're on the bus looper already
+                mHandler.removeCallbacks(mDispatchRunnable);
+                mDispatchRunnable.run();
+            }
+
+            synchronized (AmbientLightBus.this) {
+                if (mRegisteredLatency < 0) {
+                    return;
+                }
+                // batched events arrive late, so use their own timestamps
+                mPendingTimes[mPendingCount] = event.timestamp / 1000000L;
+                mPendingLux[mPendingCount] = event.values[0];
+                if (mPendingCount++ == 0) {
+                    mHandler.post(mDispatchRunnable);
+                }
+            }
+        }
+
+        @Override
+        public void onFlushCompleted(Sensor sensor) {
+            // everything from before the flush has arrived, hand it over first
+            mHandler.removeCallbacks(mDispatchRunnable);
+            mDispatchRunnable.run();
+
+            final Listener[] listeners;
+            synchronized (AmbientLightBus.this) {
+                if (mRegisteredLatency < 0) {
+                    return;
+                }
+                listeners = mDispatchList;
+            }
+            for (Listener listener : listeners) {
+                listener.onFlushCompleted();
+            }
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+            // Not used.
+        }
+    };
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println();
+        pw.println("AmbientLightBus State:");
+        pw.println("  subscribers=" + mListeners.size());
+        pw.println("  mRegisteredLatency=" + mRegisteredLatency);
+        pw.println("  registrations=" + mRegistrations + " batches=" + mBatches +
+                " samples=" + mSamples + " flushes=" + mFlushes);
+    }
+}
@@ -16,27 +16,24 @@
  */
 package org.derpfest.server.display;
 
-import android.content.Context;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.PrintWriter;
-import java.util.Iterator;
-import java.util.LinkedList;
 
+/**
+ * A subscriber of the {@link AmbientLightBus} with its own window, threshold
+ * and hysteresis, which reports transitions between low and high light.
+ */
 public class AmbientLuxObserver {
 
     private static final String TAG = "AmbientLuxObserver";
     private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
 
-    private final Sensor mLightSensor;
-    private final SensorManager mSensorManager;
+    private final AmbientLightBus mBus;
 
     private final float mThresholdLux;
     private final float mHysteresisLux;
@@ -47,8 +44,8 @@ public class AmbientLuxObserver {
 
     private float mAmbientLux = 0.0f;
 
-    private static final int LOW = 0;
-    private static final int HIGH = 1;
+    static final int LOW = 0;
+    static final int HIGH = 1;
 
     private int mState = LOW;
 
@@ -56,30 +53,76 @@ public class AmbientLuxObserver {
 
     private TransitionListener mCallback;
 
-    private final TimedMovingAverageRingBuffer mRingBuffer;
+    private final LuxFilter mFilter;
+    private final Clock mClock;
+
+    // recent raw samples, replayed through all filters in dumps
+    private static final int TRACE_SIZE = 512;
+    private final long[] mTraceTimes = new long[TRACE_SIZE];
+    private final float[] mTraceLux = new float[TRACE_SIZE];
+    private int mTraceCount = 0;
+
+    // when the filtered value is due to be evaluated again without a new
+    // sample, in case the sensor settled, or -1
+    private long mNextRecheck = -1;
+    // a flush was requested to get the samples from before mNextRecheck
+    private boolean mFlushPending = false;
+
+    private long mBatches;
+    private long mSamples;
 
     public interface TransitionListener {
         public void onTransition(int state, float ambientLux);
     }
 
-    public AmbientLuxObserver(Context context, Looper looper,
+    /**
+     * Time source for the sample window, in milliseconds. Must use the same
+     * time base as sensor event timestamps.
+     */
+    interface Clock {
+        long elapsedRealtime();
+    }
+
+    AmbientLuxObserver(AmbientLightBus bus,
             float thresholdLux, float hysteresisLux, int thresholdDuration) {
-        mLuxHandler = new AmbientLuxHandler(looper);
+        this(bus, thresholdLux, hysteresisLux, thresholdDuration,
+                LuxFilter.AVERAGE, SystemClock::elapsedRealtime);
+    }
+
+    AmbientLuxObserver(AmbientLightBus bus,
+            float thresholdLux, float hysteresisLux, int thresholdDuration,
+            int filterType, Clock clock) {
+        mBus = bus;
+        mLuxHandler = new AmbientLuxHandler(bus.getLooper());
         mThresholdLux = thresholdLux;
         mHysteresisLux = hysteresisLux;
         mThresholdDuration = thresholdDuration;
-        mRingBuffer = new TimedMovingAverageRingBuffer(thresholdDuration);
+        mClock = clock;
+        mLightSensorRate = bus.getSensorRate();
 
-        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
-        mLightSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_LIGHT);
-        mLightSensorRate = context.getResources().getInteger(
-                com.android.internal.R.integer.config_autoBrightnessLightSensorRate);
+        // leave plenty of room, on-change sensors may report faster than the rate
+        mFilter = LuxFilter.create(filterType, thresholdDuration,
+                getFilterCapacity(thresholdDuration, mLightSensorRate));
+    }
+
+    static int getFilterCapacity(int thresholdDuration, int sensorRate) {
+        return Math.max(32, 4 * thresholdDuration / Math.max(1, sensorRate) + 1);
+    }
+
+    /**
+     * @return the state for the given filtered lux, the threshold is lowered by the
+     * hysteresis while in the high state
+     */
+    static int getDirection(int state, float ambientLux, float thresholdLux,
+            float hysteresisLux) {
+        final float threshold = state == HIGH ? thresholdLux - hysteresisLux : thresholdLux;
+        return ambientLux >= threshold ? HIGH : LOW;
     }
 
     private class AmbientLuxHandler extends Handler {
 
-        private static final int MSG_UPDATE_LUX = 0;
         private static final int MSG_TRANSITION = 1;
+        private static final int MSG_FLUSH_TIMEOUT = 2;
 
         AmbientLuxHandler(Looper looper) {
             super(looper);
@@ -87,42 +130,26 @@ public class AmbientLuxObserver {
 
         @Override
         public void handleMessage(Message msg) {
-            int direction = 0;
-            float lux = 0.0f;
-
             synchronized (AmbientLuxObserver.this) {
                 switch (msg.what) {
-                    case MSG_UPDATE_LUX:
-                        lux = (Float) msg.obj;
-                        mRingBuffer.add(lux);
-
-                        // FALL THRU
-
                     case MSG_TRANSITION:
-                        mAmbientLux = mRingBuffer.getAverage();
-
-                        if (DEBUG) {
-                            Log.d(TAG, "lux= " + lux + " mState=" + mState +
-                                       " mAmbientLux=" + mAmbientLux);
-                        }
-
-                        final float threshold = mState == HIGH
-                                ? mThresholdLux - mHysteresisLux : mThresholdLux;
-                        direction = mAmbientLux >= threshold ? HIGH : LOW;
-                        if (mState != direction) {
-                            mState = direction;
-                            if (mCallback != null) {
-                                mCallback.onTransition(mState, mAmbientLux);
-                            }
+                        if (mFlushPending) {
+                            break;
                         }
-
-                        // check again in case we didn't get any
-                        // more readings because the sensor settled
-                        if (mRingBuffer.size() > 1) {
-                            removeMessages(MSG_TRANSITION);
-                            sendEmptyMessageDelayed(MSG_TRANSITION, mThresholdDuration / 2);
+                        // samples from before the recheck may still sit in the
+                        // sensor FIFO, don't decide without them
+                        if (mBus.flush()) {
+                            mFlushPending = true;
+                            sendEmptyMessageDelayed(MSG_FLUSH_TIMEOUT, mThresholdDuration / 2);
+                        } else {
+                            finishRechecksLocked();
                         }
                         break;
+                    case MSG_FLUSH_TIMEOUT:
+                        // the FIFO doesn't hold samples longer than our latency,
+                        // everything from before the recheck is here by now
+                        finishRechecksLocked();
+                        break;
                 }
             }
         }
@@ -132,21 +159,98 @@ public class AmbientLuxObserver {
         }
     };
 
-    private final SensorEventListener mListener = new SensorEventListener() {
+    /**
+     * Feeds a batch of samples through the filter, evaluating each one at its
+     * own timestamp, with the rechecks that would have happened in between,
+     * exactly as if they had been delivered on their own. This is the same
+     * sequence {@link LuxTraceReplayer} replays.
+     */
+    private final AmbientLightBus.Listener mListener = new AmbientLightBus.Listener() {
         @Override
-        public void onSensorChanged(SensorEvent event) {
-            if (mLightSensorEnabled) {
-                Message.obtain(mLuxHandler, AmbientLuxHandler.MSG_UPDATE_LUX,
-                               event.values[0]).sendToTarget();
+        public void onLuxSamples(long[] times, float[] lux, int count) {
+            synchronized (AmbientLuxObserver.this) {
+                if (!mLightSensorEnabled || count == 0) {
+                    return;
+                }
+                for (int i = 0; i < count; i++) {
+                    runRechecksLocked(times[i]);
+                    mFilter.add(times[i], lux[i]);
+                    mTraceTimes[mTraceCount % TRACE_SIZE] = times[i];
+                    mTraceLux[mTraceCount % TRACE_SIZE] = lux[i];
+                    mTraceCount++;
+                    updateStateLocked(times[i], lux[i]);
+                    mNextRecheck = mFilter.size() > 1 ? times[i] + mThresholdDuration / 2 : -1;
+                }
+                mBatches++;
+                mSamples += count;
+                if (!mFlushPending) {
+                    scheduleRecheckLocked();
+                }
             }
         }
 
         @Override
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {
-            // Not used.
+        public void onFlushCompleted() {
+            synchronized (AmbientLuxObserver.this) {
+                if (mFlushPending) {
+                    finishRechecksLocked();
+                }
+            }
         }
     };
 
+    /**
+     * Runs the rechecks due before the given time.
+     */
+    private void runRechecksLocked(long before) {
+        while (mNextRecheck >= 0 && mNextRecheck < before) {
+            final long now = mNextRecheck;
+            updateStateLocked(now, 0.0f);
+            mNextRecheck = mFilter.size() > 1 ? now + mThresholdDuration / 2 : -1;
+        }
+    }
+
+    /**
+     * Runs the rechecks which are due, once all samples from before them
+     * have arrived.
+     */
+    private void finishRechecksLocked() {
+        mFlushPending = false;
+        mLuxHandler.removeMessages(AmbientLuxHandler.MSG_FLUSH_TIMEOUT);
+        runRechecksLocked(mClock.elapsedRealtime() + 1);
+        scheduleRecheckLocked();
+    }
+
+    private void updateStateLocked(long now, float lux) {
+        mAmbientLux = mFilter.getValue(now);
+
+        if (DEBUG) {
+            Log.d(TAG, "lux= " + lux + " mState=" + mState +
+                       " mAmbientLux=" + mAmbientLux);
+        }
+
+        final int direction = getDirection(mState, mAmbientLux,
+                mThresholdLux, mHysteresisLux);
+        if (mState != direction) {
+            mState = direction;
+            if (mCallback != null) {
+                mCallback.onTransition(mState, mAmbientLux);
+            }
+        }
+    }
+
+    /**
+     * Check again in case we didn't get any more readings because
+     * the sensor settled.
+     */
+    private void scheduleRecheckLocked() {
+        mLuxHandler.removeMessages(AmbientLuxHandler.MSG_TRANSITION);
+        if (mNextRecheck >= 0) {
+            mLuxHandler.sendEmptyMessageDelayed(AmbientLuxHandler.MSG_TRANSITION,
+                    Math.max(0, mNextRecheck - mClock.elapsedRealtime()));
+        }
+    }
+
     public synchronized int getState() {
         return mState;
     }
@@ -159,102 +263,43 @@ public class AmbientLuxObserver {
     private void enableLightSensor(boolean enable) {
         if (enable && !mLightSensorEnabled) {
             mLightSensorEnabled = true;
-            mSensorManager.registerListener(mListener, mLightSensor,
-                    mLightSensorRate * 1000, mLuxHandler);
+            // let the sensor batch samples for up to half the window, which
+            // is as long as we'd wait before evaluating again anyway
+            mBus.subscribe(mListener, mThresholdDuration / 2);
         } else if (!enable && mLightSensorEnabled) {
-            mSensorManager.unregisterListener(mListener);
+            mBus.unsubscribe(mListener);
             mLuxHandler.clear();
+            mNextRecheck = -1;
+            mFlushPending = false;
             mAmbientLux = 0.0f;
             mState = LOW;
             mLightSensorEnabled = false;
-            mRingBuffer.clear();
+            mFilter.clear();
         }
     }
 
-    public void dump(PrintWriter pw) {
+    public synchronized void dump(PrintWriter pw) {
         pw.println();
         pw.println("  AmbientLuxObserver State:");
         pw.println("    mLightSensorEnabled=" + mLightSensorEnabled);
         pw.println("    mState=" + mState);
         pw.println("    mAmbientLux=" + mAmbientLux);
-        pw.println("    mRingBuffer=" + mRingBuffer.toString());
-    }
-
-    /**
-     * Calculates a simple moving average based on a fixed
-     * duration sliding window. This is useful for dampening
-     * erratic sensors and rolling thru transitional periods
-     * smoothly.
-     */
-    private static class TimedMovingAverageRingBuffer {
-
-        private final LinkedList<Sample> mRing = new LinkedList<>();
-
-        private final int mPeriod;
-
-        private float mTotal = 0.0f;
-
-        private static class Sample {
-            public final long mTimestamp;
-            public final float mValue;
-            public Sample (long timestamp, float value) {
-                mTimestamp = timestamp;
-                mValue = value;
-            }
-
-            @Override
-            public String toString() {
-                return "(" + mValue + ", " + mTimestamp + ")";
-            }
-        }
-
-        public TimedMovingAverageRingBuffer(int period) {
-            mPeriod = period;
-        }
-
-        public synchronized void add(float sample) {
-            expire();
-            if (sample == 0.0f && mRing.size() == 0) {
-                return;
-            }
-            mRing.offer(new Sample(System.currentTimeMillis(), sample));
-            mTotal += sample;
-        }
-
-        public synchronized int size() {
-            return mRing.size();
-        }
-
-        public synchronized float getAverage() {
-            expire();
-            return mRing.size() == 0 ? 0.0f : (mTotal / mRing.size());
-        }
-
-        public synchronized void clear() {
-            mRing.clear();
-            mTotal = 0.0f;
-        }
-
-        private void expire() {
-            long now = System.currentTimeMillis();
-            while (mRing.size() > 1 &&
-                    ((now - mRing.peek().mTimestamp) > mPeriod)) {
-                mTotal -= mRing.pop().mValue;
-            }
-        }
-
-        @Override
-        public synchronized String toString() {
-            expire();
-            StringBuilder sb = new StringBuilder();
-            for (Iterator<Sample> i = mRing.iterator(); i.hasNext();) {
-                if (sb.length() > 0) {
-                    sb.append(", ");
-                }
-                sb.append(i.next());
+        pw.println("    mFilter=" + mFilter.toString());
+        pw.println("    mNextRecheck=" + mNextRecheck + " mFlushPending=" + mFlushPending);
+        pw.println("    batches=" + mBatches + " samples=" + mSamples);
+
+        final int count = Math.min(mTraceCount, TRACE_SIZE);
+        if (count > 0) {
+            final long[] times = new long[count];
+            final float[] lux = new float[count];
+            for (int i = 0; i < count; i++) {
+                final int index = (mTraceCount - count + i) % TRACE_SIZE;
+                times[i] = mTraceTimes[index];
+                lux[i] = mTraceLux[index];
             }
-            return "average=" + getAverage() + " length=" + mRing.size() +
-                   " mRing=[" + sb + "]";
+            pw.println();
+            LuxTraceReplayer.replayAll(pw, times, lux, mThresholdLux, mHysteresisLux,
+                    mThresholdDuration, mLightSensorRate);
         }
     }
 }
@@ -21,7 +21,6 @@ import static org.derpfest.hardware.LiveDisplayManager.MODE_DAY;
 import static org.derpfest.hardware.LiveDisplayManager.MODE_NIGHT;
 import static org.derpfest.hardware.LiveDisplayManager.MODE_OFF;
 
-import android.animation.ValueAnimator;
 import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
@@ -35,6 +34,7 @@ import android.view.animation.AccelerateDecelerateInterpolator;
 import org.derpfest.server.display.TwilightTracker.TwilightState;
 
 import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.BitSet;
 
 import org.derpfest.providers.DerpFestSettings;
@@ -45,6 +45,7 @@ import org.derpfest.util.ColorUtils;
 public class ColorTemperatureController extends LiveDisplayFeature {
 
     private final DisplayHardwareController mDisplayHardware;
+    private final DisplayTransformCompositor mCompositor;
 
     private final boolean mUseTemperatureAdjustment;
     private final boolean mUseColorBalance;
@@ -60,21 +61,37 @@ public class ColorTemperatureController extends LiveDisplayFeature {
     private int mNightTemperature;
 
     private final AccelerateDecelerateInterpolator mInterpolator;
-    private ValueAnimator mAnimator;
 
     private final LineageHardwareManager mHardware;
 
     private static final long TWILIGHT_ADJUSTMENT_TIME = DateUtils.HOUR_IN_MILLIS / 2;
 
+    // resolution used to find the points in time where the output changes
+    private static final long SCHEDULE_RESOLUTION = DateUtils.SECOND_IN_MILLIS * 5;
+    // smallest temperature change worth a write when using the RGB calibration
+    private static final int TEMPERATURE_STEP = 50;
+
+    private static final long[] EMPTY_SCHEDULE = new long[0];
+
+    // wall clock times during twilight at which the output changes
+    private long[] mSchedule = EMPTY_SCHEDULE;
+
+    // inputs mSchedule was computed for, it is reused until one of them changes
+    private TwilightState mScheduleTwilight;
+    private int mScheduleDayTemperature;
+    private int mScheduleNightTemperature;
+
     private static final Uri DISPLAY_TEMPERATURE_DAY =
             Settings.System.getUriFor(DerpFestSettings.System.DISPLAY_TEMPERATURE_DAY);
     private static final Uri DISPLAY_TEMPERATURE_NIGHT =
             Settings.System.getUriFor(DerpFestSettings.System.DISPLAY_TEMPERATURE_NIGHT);
 
     public ColorTemperatureController(Context context,
-            Handler handler, DisplayHardwareController displayHardware) {
+            Handler handler, DisplayHardwareController displayHardware,
+            DisplayTransformCompositor compositor) {
         super(context, handler);
         mDisplayHardware = displayHardware;
+        mCompositor = compositor;
         mHardware = LineageHardwareManager.getInstance(mContext);
 
         mUseColorBalance = mHardware
@@ -129,21 +146,25 @@ public class ColorTemperatureController extends LiveDisplayFeature {
     }
 
     @Override
-    protected void onUpdate() {
+    protected synchronized void onUpdate() {
+        updateSchedule();
         updateColorTemperature();
     }
 
     @Override
-    protected void onScreenStateChanged() {
-        if (mAnimator != null && mAnimator.isRunning() && !isScreenOn()) {
-            mAnimator.cancel();
-        } else {
+    protected synchronized void onScreenStateChanged() {
+        // the compositor pauses running transitions while the screen is off,
+        // the schedule resumes from the current time when it comes back on
+        if (isScreenOn()) {
             updateColorTemperature();
+        } else {
+            mHandler.removeCallbacks(mTransitionRunnable);
         }
     }
 
     @Override
-    protected void onTwilightUpdated() {
+    protected synchronized void onTwilightUpdated() {
+        updateSchedule();
         updateColorTemperature();
     }
 
@@ -155,6 +176,7 @@ public class ColorTemperatureController extends LiveDisplayFeature {
         if (uri == null || uri.equals(DISPLAY_TEMPERATURE_NIGHT)) {
             mNightTemperature = getNightColorTemperature();
         }
+        updateSchedule();
         updateColorTemperature();
     }
 
@@ -168,9 +190,16 @@ public class ColorTemperatureController extends LiveDisplayFeature {
         pw.println("  ColorTemperatureController State:");
         pw.println("    mColorTemperature=" + mColorTemperature);
         pw.println("    isTransitioning=" + isTransitioning());
+        pw.println("    schedule=" + mSchedule.length + " points, next=" +
+                getNextScheduled(System.currentTimeMillis()));
     }
 
-    private final Runnable mTransitionRunnable = this::updateColorTemperature;
+    private final Runnable mTransitionRunnable = () -> {
+        synchronized (ColorTemperatureController.this) {
+            noteWakeup();
+            updateColorTemperature();
+        }
+    };
 
     private boolean isTransitioning() {
         return getMode() == MODE_AUTO &&
@@ -179,18 +208,20 @@ public class ColorTemperatureController extends LiveDisplayFeature {
     }
 
     private synchronized void updateColorTemperature() {
+        mHandler.removeCallbacks(mTransitionRunnable);
         if (!mUseTemperatureAdjustment || !isScreenOn()) {
             return;
         }
         int temperature = mDayTemperature;
         int mode = getMode();
+        final long now = System.currentTimeMillis();
 
         if (mode == MODE_OFF) {
             temperature = mDefaultDayTemperature;
         } else if (mode == MODE_NIGHT) {
             temperature = mNightTemperature;
         } else if (mode == MODE_AUTO) {
-            temperature = getTwilightK();
+            temperature = getTwilightK(now);
         }
 
         if (DEBUG) {
@@ -198,51 +229,103 @@ public class ColorTemperatureController extends LiveDisplayFeature {
                        " temperature=" + temperature + " mColorTemperature=" + mColorTemperature);
         }
 
-        setDisplayTemperature(temperature);
+        if (temperature != mColorTemperature) {
+            setDisplayTemperature(temperature);
+        }
 
-        if (isTransitioning()) {
-            // fire again in 30 seconds
-            mHandler.postDelayed(mTransitionRunnable, DateUtils.MINUTE_IN_MILLIS / 2);
+        if (mode == MODE_AUTO) {
+            // wake up again when the output is due to change
+            final long next = getNextScheduled(now);
+            if (next > 0) {
+                mHandler.postDelayed(mTransitionRunnable, next - now);
+            }
         }
     }
 
     /**
-     * Smoothly animate the current display color balance
+     * Walks the twilight transitions once and records every point in time at which
+     * the output changes by a step, so nothing has to be polled while transitioning.
      */
-    private synchronized void animateColorBalance(int balance) {
-
-        // always start with the current values in the hardware
-        int current = mHardware.getColorBalance();
+    private void updateSchedule() {
+        final TwilightState twilight = getTwilight();
+        if (!mUseTemperatureAdjustment || getMode() != MODE_AUTO || twilight == null) {
+            mSchedule = EMPTY_SCHEDULE;
+            mScheduleTwilight = null;
+            return;
+        }
 
-        if (current == balance) {
+        // points that have passed are skipped by getNextScheduled()
+        if (twilight.equals(mScheduleTwilight)
+                && mDayTemperature == mScheduleDayTemperature
+                && mNightTemperature == mScheduleNightTemperature) {
             return;
         }
 
-        long duration = 5L * Math.abs(current - balance);
+        // into night before sunset, into day after sunrise
+        final long[] windows = new long[] {
+                twilight.getYesterdaySunset() - TWILIGHT_ADJUSTMENT_TIME,
+                twilight.getYesterdaySunset(),
+                twilight.getTodaySunrise(),
+                twilight.getTodaySunrise() + TWILIGHT_ADJUSTMENT_TIME,
+                twilight.getTodaySunset() - TWILIGHT_ADJUSTMENT_TIME,
+                twilight.getTodaySunset(),
+                twilight.getTomorrowSunrise(),
+                twilight.getTomorrowSunrise() + TWILIGHT_ADJUSTMENT_TIME,
+        };
+
+        final long now = System.currentTimeMillis();
+        final int samples = (int) (TWILIGHT_ADJUSTMENT_TIME / SCHEDULE_RESOLUTION) + 1;
+        long[] schedule = new long[samples * windows.length / 2];
+        int size = 0;
+
+        for (int w = 0; w < windows.length; w += 2) {
+            final long start = windows[w];
+            final long end = windows[w + 1];
+            if (start < 0 || end <= now) {
+                continue;
+            }
+            int last = getOutputStep(getTwilightK(start));
+            for (long t = start + SCHEDULE_RESOLUTION; t < end; t += SCHEDULE_RESOLUTION) {
+                final int step = getOutputStep(getTwilightK(t));
+                if (step != last) {
+                    last = step;
+                    schedule[size++] = t;
+                }
+            }
+            // always land on the final value
+            schedule[size++] = end;
+        }
 
+        schedule = Arrays.copyOf(schedule, size);
+        Arrays.sort(schedule);
+        mSchedule = schedule;
+        mScheduleTwilight = twilight;
+        mScheduleDayTemperature = mDayTemperature;
+        mScheduleNightTemperature = mNightTemperature;
 
         if (DEBUG) {
-            Slog.d(TAG, "animateDisplayColor current=" + current +
-                    " target=" + balance + " duration=" + duration);
+            Slog.d(TAG, "updateSchedule: " + size + " points");
         }
+    }
 
-        if (mAnimator != null) {
-            mAnimator.cancel();
-            mAnimator.removeAllUpdateListeners();
+    private long getNextScheduled(long now) {
+        for (long t : mSchedule) {
+            if (t > now) {
+                return t;
+            }
         }
+        return -1;
+    }
 
-        mAnimator = ValueAnimator.ofInt(current, balance);
-        mAnimator.setDuration(duration);
-        mAnimator.setInterpolator(mInterpolator);
-        mAnimator.addUpdateListener(animation -> {
-            synchronized (ColorTemperatureController.this) {
-                if (isScreenOn()) {
-                    int value = (int) animation.getAnimatedValue();
-                    mHardware.setColorBalance(value);
-                }
-            }
-        });
-        mAnimator.start();
+    /**
+     * The output quantization of the given temperature, either the hardware color
+     * balance unit or a fixed temperature step for the RGB calibration.
+     */
+    private int getOutputStep(int temperature) {
+        if (mUseColorBalance) {
+            return mapColorTemperatureToBalance(temperature);
+        }
+        return temperature / TEMPERATURE_STEP;
     }
 
     /*
@@ -263,11 +346,12 @@ public class ColorTemperatureController extends LiveDisplayFeature {
         }
 
         mColorTemperature = temperature;
+        noteHardwareWrite();
 
         if (mUseColorBalance) {
             int balance = mapColorTemperatureToBalance(temperature);
             Slog.d(TAG, "Set color balance = " + balance + " (temperature=" + temperature + ")");
-            animateColorBalance(balance);
+            mCompositor.setColorBalance(balance, temperature);
             return;
         }
 
@@ -316,14 +400,14 @@ public class ColorTemperatureController extends LiveDisplayFeature {
      * Determine the color temperature we should use for the display based on
      * the position of the sun.
      *
+     * @param now
      * @return color temperature in Kelvin
      */
-    private int getTwilightK() {
+    private int getTwilightK(long now) {
         float adjustment = 1.0f;
         final TwilightState twilight = getTwilight();
 
         if (twilight != null) {
-            final long now = System.currentTimeMillis();
             adjustment = adj(now, twilight.getYesterdaySunset(), twilight.getTodaySunrise()) *
                     adj(now, twilight.getTodaySunset(), twilight.getTomorrowSunrise());
         }
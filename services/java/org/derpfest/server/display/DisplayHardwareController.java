@@ -16,19 +16,12 @@
  */
 package org.derpfest.server.display;
 
-import android.animation.FloatArrayEvaluator;
-import android.animation.ValueAnimator;
 import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
-import android.os.IBinder;
-import android.os.Parcel;
-import android.os.RemoteException;
-import android.os.ServiceManager;
 import android.provider.Settings;
 import android.util.MathUtils;
 import android.util.Slog;
-import android.view.animation.LinearInterpolator;
 
 import org.derpfest.providers.DerpFestSettings;
 import org.derpfest.hardware.LineageHardwareManager;
@@ -42,6 +35,7 @@ import java.util.BitSet;
 public class DisplayHardwareController extends LiveDisplayFeature {
 
     private final LineageHardwareManager mHardware;
+    private final DisplayTransformCompositor mCompositor;
 
     // hardware capabilities
     private final boolean mUseAutoContrast;
@@ -58,14 +52,9 @@ public class DisplayHardwareController extends LiveDisplayFeature {
     private final boolean mDefaultCABC;
     private final boolean mDefaultAntiFlicker;
 
-    // color adjustment holders
-    private final float[] mAdditionalAdjustment = getDefaultAdjustment();
+    // color adjustment holder
     private final float[] mColorAdjustment = getDefaultAdjustment();
 
-    private ValueAnimator mAnimator;
-
-    private final int mMaxColor;
-
     // settings uris
     private static final Uri DISPLAY_AUTO_CONTRAST =
             Settings.System.getUriFor(DerpFestSettings.System.DISPLAY_AUTO_CONTRAST);
@@ -80,10 +69,12 @@ public class DisplayHardwareController extends LiveDisplayFeature {
     private static final Uri DISPLAY_ANTI_FLICKER =
             Settings.System.getUriFor(DerpFestSettings.System.DISPLAY_ANTI_FLICKER);
 
-    public DisplayHardwareController(Context context, Handler handler) {
+    public DisplayHardwareController(Context context, Handler handler,
+            DisplayTransformCompositor compositor) {
         super(context, handler);
 
         mHardware = LineageHardwareManager.getInstance(mContext);
+        mCompositor = compositor;
         mUseCABC = mHardware
                 .isSupported(LineageHardwareManager.FEATURE_ADAPTIVE_BACKLIGHT);
         mDefaultCABC = mContext.getResources().getBoolean(
@@ -114,10 +105,7 @@ public class DisplayHardwareController extends LiveDisplayFeature {
                 com.android.internal.R.bool.config_defaultAntiFlicker);
 
         if (mUseColorAdjustment) {
-            mMaxColor = mHardware.getDisplayColorCalibrationMax();
             copyColors(getColorAdjustment(), mColorAdjustment);
-        } else {
-            mMaxColor = 0;
         }
     }
 
@@ -193,6 +181,9 @@ public class DisplayHardwareController extends LiveDisplayFeature {
             copyColors(getColorAdjustment(), mColorAdjustment);
             updateColorAdjustment();
         }
+        if (uri == null || uri.equals(DISPLAY_READING_MODE)) {
+            updateReadingMode();
+        }
         if (uri == null || uri.equals(DISPLAY_ANTI_FLICKER)) {
             updateAntiFlicker();
         }
@@ -212,17 +203,6 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         updateHardware();
     }
 
-    @Override
-    protected synchronized void onScreenStateChanged() {
-        if (mUseColorAdjustment) {
-            if (mAnimator != null && mAnimator.isRunning() && !isScreenOn()) {
-                mAnimator.cancel();
-            } else if (isScreenOn()) {
-                updateColorAdjustment();
-            }
-        }
-    }
-
     @Override
     public void dump(PrintWriter pw) {
         pw.println();
@@ -240,7 +220,9 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         pw.println("    mColorEnhancement=" + isColorEnhancementEnabled());
         pw.println("    mCABC=" + isCABCEnabled());
         pw.println("    mColorAdjustment=" + Arrays.toString(mColorAdjustment));
-        pw.println("    mAdditionalAdjustment=" + Arrays.toString(mAdditionalAdjustment));
+        pw.println("    mAdditionalAdjustment=" +
+                Arrays.toString(mCompositor.getTemperatureGains()));
+        pw.println("    mReadingMode=" + isReadingModeEnabled());
         pw.println("    hardware setting=" + Arrays.toString(mHardware.getDisplayColorCalibration()));
     }
 
@@ -252,6 +234,7 @@ public class DisplayHardwareController extends LiveDisplayFeature {
             return;
         }
         mHardware.set(LineageHardwareManager.FEATURE_AUTO_CONTRAST, isAutoContrastEnabled());
+        noteHardwareWrite();
     }
 
     /**
@@ -263,6 +246,7 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         }
         mHardware.set(LineageHardwareManager.FEATURE_COLOR_ENHANCEMENT,
                 (!isLowPowerMode() || mDefaultColorEnhancement) && isColorEnhancementEnabled());
+        noteHardwareWrite();
     }
 
     /**
@@ -273,6 +257,7 @@ public class DisplayHardwareController extends LiveDisplayFeature {
             return;
         }
         mHardware.set(LineageHardwareManager.FEATURE_ADAPTIVE_BACKLIGHT, isCABCEnabled());
+        noteHardwareWrite();
     }
 
     private synchronized void updateColorAdjustment() {
@@ -280,102 +265,35 @@ public class DisplayHardwareController extends LiveDisplayFeature {
             return;
         }
 
-        final float[] rgb = getDefaultAdjustment();
-
-        copyColors(mColorAdjustment, rgb);
-        rgb[0] *= mAdditionalAdjustment[0];
-        rgb[1] *= mAdditionalAdjustment[1];
-        rgb[2] *= mAdditionalAdjustment[2];
-
         if (DEBUG) {
-            Slog.d(TAG, "updateColorAdjustment: " + Arrays.toString(rgb));
+            Slog.d(TAG, "updateColorAdjustment: " + Arrays.toString(mColorAdjustment));
         }
 
-        if (validateColors(rgb)) {
-            animateDisplayColor(rgb);
+        if (validateColors(mColorAdjustment)) {
+            mCompositor.setCalibrationGains(mColorAdjustment);
         }
     }
 
     /**
-     * Anti flicker mode
+     * Reading mode, applied through the compositor so it is only written
+     * while the screen is on.
      */
-    private void updateAntiFlicker() {
-        if (!mUseAntiFlicker) {
+    private void updateReadingMode() {
+        if (!mUseReaderMode) {
             return;
         }
-        mHardware.set(LineageHardwareManager.FEATURE_ANTI_FLICKER, isAntiFlickerEnabled());
+        mCompositor.setReadingMode(isReadingModeEnabled());
     }
 
     /**
-     * Smoothly animate the current display colors to the new value.
+     * Anti flicker mode
      */
-    private synchronized void animateDisplayColor(float[] targetColors) {
-
-        // always start with the current values in the hardware
-        int[] currentInts = mHardware.getDisplayColorCalibration();
-        float[] currentColors = new float[] {
-                (float)currentInts[0] / (float)mMaxColor,
-                (float)currentInts[1] / (float)mMaxColor,
-                (float)currentInts[2] / (float)mMaxColor };
-
-        if (currentColors[0] == targetColors[0] &&
-                currentColors[1] == targetColors[1] &&
-                currentColors[2] == targetColors[2]) {
+    private void updateAntiFlicker() {
+        if (!mUseAntiFlicker) {
             return;
         }
-
-        // max 500 ms, scaled vs. the largest delta
-        long duration = (long)(750 * (Math.max(Math.max(
-                Math.abs(currentColors[0] - targetColors[0]),
-                Math.abs(currentColors[1] - targetColors[1])),
-                Math.abs(currentColors[2] - targetColors[2]))));
-
-        if (DEBUG) {
-            Slog.d(TAG, "animateDisplayColor current=" + Arrays.toString(currentColors) +
-                    " targetColors=" + Arrays.toString(targetColors) + " duration=" + duration);
-        }
-
-        if (mAnimator != null) {
-            mAnimator.cancel();
-            mAnimator.removeAllUpdateListeners();
-        }
-
-        mAnimator = ValueAnimator.ofObject(
-                new FloatArrayEvaluator(new float[3]), currentColors, targetColors);
-        mAnimator.setDuration(duration);
-        mAnimator.setInterpolator(new LinearInterpolator());
-        mAnimator.addUpdateListener(animation -> {
-            synchronized (DisplayHardwareController.this) {
-                if (isScreenOn()) {
-                    float[] value = (float[]) animation.getAnimatedValue();
-                    mHardware.setDisplayColorCalibration(new int[] {
-                            (int) (value[0] * mMaxColor),
-                            (int) (value[1] * mMaxColor),
-                            (int) (value[2] * mMaxColor)
-                    });
-                    screenRefresh();
-                }
-            }
-        });
-        mAnimator.start();
-    }
-
-    /**
-     * Tell SurfaceFlinger to repaint the screen. This is called after updating
-     * hardware registers for display calibration to have an immediate effect.
-     */
-    private void screenRefresh() {
-        try {
-            final IBinder flinger = ServiceManager.getService("SurfaceFlinger");
-            if (flinger != null) {
-                final Parcel data = Parcel.obtain();
-                data.writeInterfaceToken("android.ui.ISurfaceComposer");
-                flinger.transact(1004, data, null, 0);
-                data.recycle();
-            }
-        } catch (RemoteException ex) {
-            Slog.e(TAG, "Failed to refresh screen", ex);
-        }
+        mHardware.set(LineageHardwareManager.FEATURE_ANTI_FLICKER, isAntiFlickerEnabled());
+        noteHardwareWrite();
     }
 
     /**
@@ -434,8 +352,7 @@ public class DisplayHardwareController extends LiveDisplayFeature {
 
         // Sanity check this so we don't mangle the display
         if (validateColors(adj)) {
-            copyColors(adj, mAdditionalAdjustment);
-            updateColorAdjustment();
+            mCompositor.setTemperatureGains(adj);
             return true;
         }
         return false;
@@ -537,6 +454,11 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         }
     }
 
+    boolean isReadingModeEnabled() {
+        return mUseReaderMode &&
+                getBoolean(DerpFestSettings.System.DISPLAY_READING_MODE, false);
+    }
+
     boolean isAntiFlickerEnabled() {
         return mUseAntiFlicker &&
                 getBoolean(DerpFestSettings.System.DISPLAY_ANTI_FLICKER, mDefaultAntiFlicker);
@@ -0,0 +1,630 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.derpfest.server.display;
+
+import android.animation.ValueAnimator;
+import android.content.Context;
+import android.hardware.display.DisplayManager;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.util.MathUtils;
+import android.util.Slog;
+import android.view.Display;
+
+import org.derpfest.hardware.LineageHardwareManager;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Single writer for the display color transforms applied by LiveDisplay.
+ *
+ * Features don't touch the hardware themselves, they submit target states:
+ * the user calibration and night mode gains, which are combined into one RGB
+ * calibration, the color balance and the reading mode. Transitions run on a
+ * single clock, and every frame issues at most one calibration write, one color
+ * balance write and one screen refresh.
+ *
+ * Transitions are planned by {@link PerceptualStepPlanner}, so they only take
+ * as many steps as needed to look smooth. The clock only ticks when a step is
+ * due, and a value is only written when its quantized form differs from what
+ * was written last.
+ */
+public class DisplayTransformCompositor {
+
+    private static final String TAG = "LiveDisplay-DTC";
+    private static final boolean DEBUG = LiveDisplayFeature.DEBUG;
+
+    /**
+     * Where the composed state ends up. Backed by LineageHardwareManager and
+     * SurfaceFlinger on device.
+     */
+    interface Sink {
+        boolean hasCalibration();
+        int getCalibrationMax();
+        int[] getCalibration();
+        // rgb is reused across frames and must not be retained
+        boolean setCalibration(int[] rgb);
+
+        boolean hasColorBalance();
+        int getColorBalance();
+        boolean setColorBalance(int balance);
+
+        boolean hasReadingMode();
+        void setReadingMode(boolean enabled);
+
+        void refresh();
+
+        void dump(PrintWriter pw);
+    }
+
+    // calibration transitions take up to 750ms, scaled by the largest delta
+    private static final long CALIBRATION_DURATION_MS = 750;
+    // color balance transitions take 5ms per unit
+    private static final long BALANCE_DURATION_PER_UNIT_MS = 5;
+    // never tick faster than the display can show it
+    private static final long MIN_FRAME_INTERVAL_MS = 16;
+
+    private final Handler mHandler;
+    private final Sink mSink;
+    private final PerceptualStepPlanner mPlanner;
+    private final int mMaxColor;
+
+    // submitted state
+    private final float[] mCalibrationGains = getDefaultGains();
+    private final float[] mTemperatureGains = getDefaultGains();
+    private int mTargetBalance;
+    private boolean mReadingMode;
+
+    // composed calibration transition
+    private final float[] mRgb = getDefaultGains();
+    private final float[] mRgbStart = getDefaultGains();
+    private final float[] mRgbTarget = getDefaultGains();
+    private float[] mRgbSteps;
+    private long mRgbStartTime;
+    private long mRgbDuration;
+    private long mRgbNextFrame;
+    private boolean mRgbAnimating;
+
+    // color balance transition, the temperatures are only known once
+    // a balance has been submitted
+    private int mBalance;
+    private int mBalanceStart;
+    private int mTemperature = -1;
+    private int mTemperatureStart = -1;
+    private int mTargetTemperature = -1;
+    private float[] mBalanceSteps;
+    private long mBalanceStartTime;
+    private long mBalanceDuration;
+    private long mBalanceNextFrame;
+    private boolean mBalanceAnimating;
+
+    private final Runnable mFrameRunnable = this::doFrame;
+
+    private boolean mScreenOn;
+
+    // written state, mScratchRgb is reused for every frame
+    private final int[] mWrittenRgb = new int[3];
+    private final int[] mScratchRgb = new int[3];
+    private int mWrittenBalance;
+    private Boolean mWrittenReadingMode;
+
+    // statistics
+    private long mTransitions;
+    private long mStepsPlanned;
+    private long mFramesEvaluated;
+    private long mCalibrationWrites;
+    private long mBalanceWrites;
+    private long mWritesSkipped;
+
+    public DisplayTransformCompositor(Context context, Handler handler) {
+        this(handler, new HardwareSink(context, handler),
+                new PerceptualStepPlanner(PerceptualStepPlanner.DEFAULT_JND));
+    }
+
+    DisplayTransformCompositor(Handler handler, Sink sink, PerceptualStepPlanner planner) {
+        mHandler = handler;
+        mSink = sink;
+        mPlanner = planner;
+
+        if (mSink.hasCalibration()) {
+            mMaxColor = mSink.getCalibrationMax();
+            final int[] current = mSink.getCalibration();
+            if (current != null && current.length >= 3 && mMaxColor > 0) {
+                for (int i = 0; i < 3; i++) {
+                    mWrittenRgb[i] = current[i];
+                    mRgb[i] = (float) current[i] / (float) mMaxColor;
+                }
+            }
+        } else {
+            mMaxColor = 0;
+        }
+
+        if (mSink.hasColorBalance()) {
+            mWrittenBalance = mBalance = mTargetBalance = mSink.getColorBalance();
+        }
+    }
+
+    /**
+     * User calibration, multiplied with the temperature gains.
+     */
+    synchronized void setCalibrationGains(float[] gains) {
+        copyGains(gains, mCalibrationGains);
+        startCalibrationTransition();
+    }
+
+    /**
+     * Night mode gains, used when color temperature is emulated through
+     * the RGB calibration.
+     */
+    synchronized void setTemperatureGains(float[] gains) {
+        copyGains(gains, mTemperatureGains);
+        startCalibrationTransition();
+    }
+
+    /**
+     * Color balance, along with the temperature it represents which is used
+     * to plan the transition.
+     */
+    synchronized void setColorBalance(int balance, int temperature) {
+        if (!mSink.hasColorBalance()) {
+            return;
+        }
+        mTargetBalance = balance;
+        mTargetTemperature = temperature;
+        startBalanceTransition();
+    }
+
+    synchronized void setReadingMode(boolean enabled) {
+        if (!mSink.hasReadingMode()) {
+            return;
+        }
+        mReadingMode = enabled;
+        if (mScreenOn) {
+            writeReadingMode();
+        }
+    }
+
+    /**
+     * Transitions are paused while the screen is off and resume from where
+     * they were when it comes back on.
+     */
+    synchronized void setScreenOn(boolean screenOn) {
+        if (mScreenOn == screenOn) {
+            return;
+        }
+        mScreenOn = screenOn;
+        if (!screenOn) {
+            mHandler.removeCallbacks(mFrameRunnable);
+            return;
+        }
+        writeReadingMode();
+        startCalibrationTransition();
+        startBalanceTransition();
+    }
+
+    synchronized float[] getTemperatureGains() {
+        return Arrays.copyOf(mTemperatureGains, 3);
+    }
+
+    synchronized boolean isAnimating() {
+        return mRgbAnimating || mBalanceAnimating;
+    }
+
+    synchronized long getFramesEvaluated() {
+        return mFramesEvaluated;
+    }
+
+    synchronized long getWritesIssued() {
+        return mCalibrationWrites + mBalanceWrites;
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (this) {
+            pw.println();
+            pw.println("  DisplayTransformCompositor State:");
+            pw.println("    mScreenOn=" + mScreenOn);
+            pw.println("    mCalibrationGains=" + Arrays.toString(mCalibrationGains));
+            pw.println("    mTemperatureGains=" + Arrays.toString(mTemperatureGains));
+            pw.println("    mRgb=" + Arrays.toString(mRgb) + " animating=" + mRgbAnimating);
+            pw.println("    mWrittenRgb=" + Arrays.toString(mWrittenRgb));
+            pw.println("    mTargetBalance=" + mTargetBalance + " mBalance=" + mBalance
+                    + " animating=" + mBalanceAnimating);
+            pw.println("    mReadingMode=" + mReadingMode);
+            pw.println("    jnd=" + mPlanner.getJnd() + " transitions=" + mTransitions
+                    + " stepsPlanned=" + mStepsPlanned);
+            pw.println("    framesEvaluated=" + mFramesEvaluated
+                    + " calibrationWrites=" + mCalibrationWrites
+                    + " balanceWrites=" + mBalanceWrites
+                    + " writesSkipped=" + mWritesSkipped);
+            mSink.dump(pw);
+        }
+    }
+
+    private void startCalibrationTransition() {
+        if (!mSink.hasCalibration()) {
+            return;
+        }
+
+        for (int i = 0; i < 3; i++) {
+            mRgbTarget[i] = MathUtils.constrain(
+                    mCalibrationGains[i] * mTemperatureGains[i], 0.0f, 1.0f);
+        }
+        if (!mScreenOn) {
+            return;
+        }
+        if (Arrays.equals(mRgb, mRgbTarget)) {
+            mRgbAnimating = false;
+            return;
+        }
+
+        final float maxDelta = Math.max(Math.max(
+                Math.abs(mRgb[0] - mRgbTarget[0]),
+                Math.abs(mRgb[1] - mRgbTarget[1])),
+                Math.abs(mRgb[2] - mRgbTarget[2]));
+
+        copyGains(mRgb, mRgbStart);
+        mRgbSteps = mPlanner.plan(mRgbStart, mRgbTarget);
+        mRgbStartTime = SystemClock.uptimeMillis();
+        mRgbDuration = getScaledDuration((long) (CALIBRATION_DURATION_MS * maxDelta));
+        mRgbNextFrame = PerceptualStepPlanner.getStepTime(
+                mRgbStartTime, mRgbDuration, mRgbSteps.length, 0);
+        mRgbAnimating = true;
+        mTransitions++;
+        mStepsPlanned += mRgbSteps.length;
+
+        if (DEBUG) {
+            Slog.d(TAG, "calibration current=" + Arrays.toString(mRgb) +
+                    " target=" + Arrays.toString(mRgbTarget) + " duration=" + mRgbDuration +
+                    " steps=" + mRgbSteps.length);
+        }
+        scheduleFrame();
+    }
+
+    private void startBalanceTransition() {
+        if (!mSink.hasColorBalance() || !mScreenOn) {
+            return;
+        }
+        if (mBalance == mTargetBalance && mWrittenBalance == mTargetBalance) {
+            mBalanceAnimating = false;
+            mTemperature = mTargetTemperature;
+            return;
+        }
+
+        final int units = Math.abs(mTargetBalance - mBalance);
+        mBalanceStart = mBalance;
+        mTemperatureStart = mTemperature;
+        if (mTemperatureStart > 0 && mTargetTemperature > 0) {
+            mBalanceSteps = mPlanner.planTemperature(mTemperatureStart, mTargetTemperature);
+        } else {
+            // we don't know what the hardware was set to before us
+            mBalanceSteps = PerceptualStepPlanner.uniform(units);
+        }
+        mBalanceStartTime = SystemClock.uptimeMillis();
+        mBalanceDuration = getScaledDuration(BALANCE_DURATION_PER_UNIT_MS * units);
+        mBalanceNextFrame = PerceptualStepPlanner.getStepTime(
+                mBalanceStartTime, mBalanceDuration, mBalanceSteps.length, 0);
+        mBalanceAnimating = true;
+        mTransitions++;
+        mStepsPlanned += mBalanceSteps.length;
+
+        if (DEBUG) {
+            Slog.d(TAG, "color balance current=" + mBalance + " target=" + mTargetBalance +
+                    " duration=" + mBalanceDuration + " steps=" + mBalanceSteps.length);
+        }
+        scheduleFrame();
+    }
+
+    /**
+     * Schedules the next tick of the shared clock for the earliest frame any
+     * running transition needs.
+     */
+    private void scheduleFrame() {
+        mHandler.removeCallbacks(mFrameRunnable);
+        if (!mScreenOn) {
+            return;
+        }
+
+        long next = Long.MAX_VALUE;
+        if (mRgbAnimating) {
+            next = Math.min(next, mRgbNextFrame);
+        }
+        if (mBalanceAnimating) {
+            next = Math.min(next, mBalanceNextFrame);
+        }
+        if (next != Long.MAX_VALUE) {
+            mHandler.postAtTime(mFrameRunnable, next);
+        }
+    }
+
+    private void doFrame() {
+        synchronized (this) {
+            onFrame(SystemClock.uptimeMillis());
+            scheduleFrame();
+        }
+    }
+
+    /**
+     * Advances the transitions which are due to the given time and writes the
+     * values that changed after quantization.
+     */
+    private void onFrame(long now) {
+        if (!mScreenOn) {
+            return;
+        }
+
+        boolean refresh = false;
+
+        if (mRgbAnimating && now >= mRgbNextFrame) {
+            mFramesEvaluated++;
+            final int n = mRgbSteps.length;
+            final int step = PerceptualStepPlanner.getStepIndex(
+                    now, mRgbStartTime, mRgbDuration, n);
+            final float f = step < 0 ? 0.0f : mRgbSteps[step];
+            for (int i = 0; i < 3; i++) {
+                mRgb[i] = MathUtils.lerp(mRgbStart[i], mRgbTarget[i], f);
+                mScratchRgb[i] = (int) (mRgb[i] * mMaxColor);
+            }
+            if (step == n - 1) {
+                mRgbAnimating = false;
+            } else {
+                mRgbNextFrame = Math.max(now + MIN_FRAME_INTERVAL_MS,
+                        PerceptualStepPlanner.getStepTime(
+                                mRgbStartTime, mRgbDuration, n, step + 1));
+            }
+            if (Arrays.equals(mScratchRgb, mWrittenRgb)) {
+                mWritesSkipped++;
+            } else {
+                // only repaint, and only skip these values from now on, if
+                // the hardware actually took them
+                if (mSink.setCalibration(mScratchRgb)) {
+                    System.arraycopy(mScratchRgb, 0, mWrittenRgb, 0, 3);
+                    refresh = true;
+                }
+                mCalibrationWrites++;
+            }
+        }
+
+        if (mBalanceAnimating && now >= mBalanceNextFrame) {
+            mFramesEvaluated++;
+            final int n = mBalanceSteps.length;
+            final int step = PerceptualStepPlanner.getStepIndex(
+                    now, mBalanceStartTime, mBalanceDuration, n);
+            final float f = step < 0 ? 0.0f : mBalanceSteps[step];
+            // the balance curve is close enough to linear within one transition
+            mBalance = Math.round(MathUtils.lerp(mBalanceStart, mTargetBalance, f));
+            if (mTemperatureStart > 0) {
+                mTemperature = Math.round(
+                        MathUtils.lerp(mTemperatureStart, mTargetTemperature, f));
+            }
+            if (step == n - 1) {
+                mBalanceAnimating = false;
+                mTemperature = mTargetTemperature;
+            } else {
+                mBalanceNextFrame = Math.max(now + MIN_FRAME_INTERVAL_MS,
+                        PerceptualStepPlanner.getStepTime(
+                                mBalanceStartTime, mBalanceDuration, n, step + 1));
+            }
+            if (mBalance == mWrittenBalance) {
+                mWritesSkipped++;
+            } else {
+                // as for the calibration, a failed write is retried
+                if (mSink.setColorBalance(mBalance)) {
+                    mWrittenBalance = mBalance;
+                }
+                mBalanceWrites++;
+            }
+        }
+
+        if (refresh) {
+            mSink.refresh();
+        }
+    }
+
+    private void writeReadingMode() {
+        if (!mSink.hasReadingMode()) {
+            return;
+        }
+        if (mWrittenReadingMode == null || mWrittenReadingMode != mReadingMode) {
+            mSink.setReadingMode(mReadingMode);
+            mWrittenReadingMode = mReadingMode;
+        }
+    }
+
+    /**
+     * Honors the animator duration scale, a scale of 0 makes transitions jump.
+     */
+    private static long getScaledDuration(long duration) {
+        return ValueAnimator.areAnimatorsEnabled()
+                ? (long) (duration * ValueAnimator.getDurationScale()) : 0;
+    }
+
+    private static float[] getDefaultGains() {
+        return new float[] { 1.0f, 1.0f, 1.0f };
+    }
+
+    private static void copyGains(float[] src, float[] dst) {
+        if (src != null && dst != null && src.length == 3 && dst.length == 3) {
+            dst[0] = src[0];
+            dst[1] = src[1];
+            dst[2] = src[2];
+        }
+    }
+
+    private static final class HardwareSink implements Sink, IBinder.DeathRecipient {
+        private static final String SURFACE_FLINGER = "SurfaceFlinger";
+        private static final String SURFACE_COMPOSER = "android.ui.ISurfaceComposer";
+        private static final int REFRESH_TRANSACTION = 1004;
+
+        private final LineageHardwareManager mHardware;
+        private final Handler mHandler;
+        private final Display mDisplay;
+        private final boolean mHasCalibration;
+        private final boolean mHasColorBalance;
+        private final boolean mHasReadingMode;
+
+        // SurfaceFlinger is resolved once and dropped again when it dies
+        private IBinder mFlinger;
+
+        private final Runnable mRefreshRunnable = this::doRefresh;
+        private boolean mRefreshPending;
+        private long mLastRefreshTime;
+        private long mRefreshRequested;
+        private long mRefreshSent;
+
+        HardwareSink(Context context, Handler handler) {
+            mHardware = LineageHardwareManager.getInstance(context);
+            mHandler = handler;
+            mDisplay = context.getSystemService(DisplayManager.class)
+                    .getDisplay(Display.DEFAULT_DISPLAY);
+            mHasCalibration = mHardware.isSupported(
+                    LineageHardwareManager.FEATURE_DISPLAY_COLOR_CALIBRATION);
+            mHasColorBalance = mHardware.isSupported(
+                    LineageHardwareManager.FEATURE_COLOR_BALANCE);
+            mHasReadingMode = mHardware.isSupported(
+                    LineageHardwareManager.FEATURE_READING_ENHANCEMENT);
+        }
+
+        @Override
+        public boolean hasCalibration() {
+            return mHasCalibration;
+        }
+
+        @Override
+        public int getCalibrationMax() {
+            return mHardware.getDisplayColorCalibrationMax();
+        }
+
+        @Override
+        public int[] getCalibration() {
+            return mHardware.getDisplayColorCalibration();
+        }
+
+        @Override
+        public boolean setCalibration(int[] rgb) {
+            return mHardware.setDisplayColorCalibration(rgb);
+        }
+
+        @Override
+        public boolean hasColorBalance() {
+            return mHasColorBalance;
+        }
+
+        @Override
+        public int getColorBalance() {
+            return mHardware.getColorBalance();
+        }
+
+        @Override
+        public boolean setColorBalance(int balance) {
+            return mHardware.setColorBalance(balance);
+        }
+
+        @Override
+        public boolean hasReadingMode() {
+            return mHasReadingMode;
+        }
+
+        @Override
+        public void setReadingMode(boolean enabled) {
+            mHardware.set(LineageHardwareManager.FEATURE_READING_ENHANCEMENT, enabled);
+        }
+
+        /**
+         * Tell SurfaceFlinger to repaint the screen. This is called after updating
+         * hardware registers for display calibration to have an immediate effect.
+         *
+         * Requests are coalesced, at most one transaction is sent per display frame.
+         */
+        @Override
+        public synchronized void refresh() {
+            mRefreshRequested++;
+            if (mRefreshPending) {
+                return;
+            }
+            mRefreshPending = true;
+
+            final long next = mLastRefreshTime + getFrameIntervalMillis();
+            if (SystemClock.uptimeMillis() >= next) {
+                mHandler.post(mRefreshRunnable);
+            } else {
+                mHandler.postAtTime(mRefreshRunnable, next);
+            }
+        }
+
+        private void doRefresh() {
+            final IBinder flinger;
+            synchronized (this) {
+                mRefreshPending = false;
+                mLastRefreshTime = SystemClock.uptimeMillis();
+                flinger = getSurfaceFlinger();
+            }
+            if (flinger == null) {
+                return;
+            }
+
+            final Parcel data = Parcel.obtain();
+            try {
+                data.writeInterfaceToken(SURFACE_COMPOSER);
+                flinger.transact(REFRESH_TRANSACTION, data, null, 0);
+                synchronized (this) {
+                    mRefreshSent++;
+                }
+            } catch (RemoteException ex) {
+                Slog.e(TAG, "Failed to refresh screen", ex);
+            } finally {
+                data.recycle();
+            }
+        }
+
+        private IBinder getSurfaceFlinger() {
+            if (mFlinger == null) {
+                final IBinder flinger = ServiceManager.getService(SURFACE_FLINGER);
+                if (flinger != null) {
+                    try {
+                        flinger.linkToDeath(this, 0);
+                        mFlinger = flinger;
+                    } catch (RemoteException e) {
+                        // died already, try again with the next refresh
+                        return null;
+                    }
+                }
+            }
+            return mFlinger;
+        }
+
+        @Override
+        public synchronized void binderDied() {
+            Slog.w(TAG, "SurfaceFlinger died");
+            mFlinger = null;
+        }
+
+        private long getFrameIntervalMillis() {
+            final float refreshRate = mDisplay != null ? mDisplay.getRefreshRate() : 0;
+            return refreshRate > 0 ? (long) (1000 / refreshRate) : MIN_FRAME_INTERVAL_MS;
+        }
+
+        @Override
+        public synchronized void dump(PrintWriter pw) {
+            pw.println("    refreshRequested=" + mRefreshRequested
+                    + " refreshSent=" + mRefreshSent);
+        }
+    }
+}
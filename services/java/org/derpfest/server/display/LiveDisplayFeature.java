@@ -19,10 +19,12 @@ package org.derpfest.server.display;
 import static org.derpfest.server.display.LiveDisplayService.ALL_CHANGED;
 import static org.derpfest.server.display.LiveDisplayService.DISPLAY_CHANGED;
 import static org.derpfest.server.display.LiveDisplayService.MODE_CHANGED;
+import static org.derpfest.server.display.LiveDisplayService.SETTINGS_CHANGED;
 import static org.derpfest.server.display.LiveDisplayService.TWILIGHT_CHANGED;
 
 import android.content.Context;
 import android.hardware.display.ColorDisplayManager;
+import android.net.Uri;
 import android.os.Handler;
 import android.util.Log;
 
@@ -30,7 +32,9 @@ import org.derpfest.server.LineageBaseFeature;
 import org.derpfest.server.display.LiveDisplayService.State;
 import org.derpfest.server.display.TwilightTracker.TwilightState;
 
+import java.io.PrintWriter;
 import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class LiveDisplayFeature extends LineageBaseFeature {
 
@@ -39,7 +43,13 @@ public abstract class LiveDisplayFeature extends LineageBaseFeature {
 
     protected final boolean mNightDisplayAvailable;
 
-    private State mState;
+    private volatile State mState;
+
+    // per feature counters, so scheduling changes can be compared in dumps.
+    // Bumped from the handler, binder and sensor threads alike.
+    private final AtomicLong mUpdates = new AtomicLong();
+    private final AtomicLong mWakeups = new AtomicLong();
+    private final AtomicLong mHardwareWrites = new AtomicLong();
 
     public LiveDisplayFeature(Context context, Handler handler) {
         super(context, handler);
@@ -50,22 +60,58 @@ public abstract class LiveDisplayFeature extends LineageBaseFeature {
 
     protected abstract void onUpdate();
 
-    void update(final int flags, final State state) {
+    /**
+     * @param flags the events which triggered this update
+     * @param state the state snapshot for this update
+     * @param changes the flags for the state fields which changed since the last
+     *                update, events for fields which have since changed back are skipped
+     * @param settings the settings changed together with this update
+     */
+    void update(final int flags, final State state, final int changes, final Uri[] settings) {
         mState = state;
-        if ((flags & DISPLAY_CHANGED) != 0) {
+        mUpdates.incrementAndGet();
+        final int changed = flags == ALL_CHANGED ? ALL_CHANGED : flags & changes;
+        if ((changed & DISPLAY_CHANGED) != 0) {
             onScreenStateChanged();
         }
-        if (((flags & TWILIGHT_CHANGED) != 0) && mState.mTwilight != null) {
+        if (((changed & TWILIGHT_CHANGED) != 0) && mState.mTwilight != null) {
             onTwilightUpdated();
         }
-        if ((flags & MODE_CHANGED) != 0) {
+        if ((changed & MODE_CHANGED) != 0) {
             onUpdate();
         }
         if (flags == ALL_CHANGED) {
-            onSettingsChanged(null);
+            dispatchSettingsChanged(null);
+        } else if ((flags & SETTINGS_CHANGED) != 0) {
+            // the observer will be told about these too, but by then they
+            // are already handled and skipped. Settings of other features
+            // are none of our business.
+            for (Uri uri : settings) {
+                if (isRegisteredSetting(uri)) {
+                    dispatchSettingsChanged(uri);
+                }
+            }
         }
     }
 
+    /**
+     * Counts a wakeup the feature scheduled or received on its own, outside of
+     * the update passes.
+     */
+    protected final void noteWakeup() {
+        mWakeups.incrementAndGet();
+    }
+
+    protected final void noteHardwareWrite() {
+        mHardwareWrites.incrementAndGet();
+    }
+
+    void dumpStats(PrintWriter pw) {
+        pw.println("  " + getClass().getSimpleName() + ": updates=" + mUpdates.get() +
+                " wakeups=" + mWakeups.get() + " hardwareWrites=" + mHardwareWrites.get() +
+                " settingsChangesSkipped=" + getSettingsChangesSkipped());
+    }
+
     protected void onScreenStateChanged() { }
 
     protected void onTwilightUpdated() { }
@@ -36,6 +36,8 @@ import android.os.PowerSaveState;
 import android.os.Process;
 import android.os.UserHandle;
 import android.provider.Settings;
+import android.util.ArraySet;
+import android.util.Slog;
 import android.view.Display;
 
 import com.android.server.LocalServices;
@@ -50,15 +52,22 @@ import org.derpfest.app.LineageContextConstants;
 import org.derpfest.providers.DerpFestSettings;
 import org.derpfest.hardware.HSIC;
 import org.derpfest.hardware.ILiveDisplayService;
+import org.derpfest.hardware.LineageHardwareManager;
 import org.derpfest.hardware.LiveDisplayConfig;
+import org.derpfest.hardware.LiveDisplayManager;
+import org.derpfest.hardware.LiveDisplayProfile;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 
 /**
  * LiveDisplay is an advanced set of features for improving
@@ -86,6 +95,9 @@ public class LiveDisplayService extends SystemService {
 
     private final List<LiveDisplayFeature> mFeatures = new ArrayList<LiveDisplayFeature>();
 
+    private DisplayTransformCompositor mCompositor;
+    private AmbientLightBus mLightBus;
+
     private ColorTemperatureController mCTC;
     private DisplayHardwareController mDHC;
     private OutdoorModeController mOMC;
@@ -96,17 +108,72 @@ public class LiveDisplayService extends SystemService {
     static int MODE_CHANGED = 1;
     static int DISPLAY_CHANGED = 2;
     static int TWILIGHT_CHANGED = 4;
+    static int SETTINGS_CHANGED = 8;
     static int ALL_CHANGED = 255;
 
     // PowerManager ServiceType to use when we're only
     // interested in gleaning global battery saver state.
     private static final int SERVICE_TYPE_DUMMY = ServiceType.LOCATION;
 
-    static class State {
-        public boolean mLowPowerMode = false;
-        public boolean mScreenOn = false;
-        public int mMode = -1;
-        public TwilightState mTwilight = null;
+    /**
+     * Immutable snapshot of the inputs features depend on. Changes are published
+     * by swapping the snapshot in mState.
+     */
+    static final class State {
+        public final boolean mLowPowerMode;
+        public final boolean mScreenOn;
+        public final int mMode;
+        public final TwilightState mTwilight;
+
+        static final State INITIAL = new State(false, false, -1, null);
+
+        State(boolean lowPowerMode, boolean screenOn, int mode, TwilightState twilight) {
+            mLowPowerMode = lowPowerMode;
+            mScreenOn = screenOn;
+            mMode = mode;
+            mTwilight = twilight;
+        }
+
+        State withLowPowerMode(boolean lowPowerMode) {
+            return lowPowerMode == mLowPowerMode ? this :
+                    new State(lowPowerMode, mScreenOn, mMode, mTwilight);
+        }
+
+        State withScreenOn(boolean screenOn) {
+            return screenOn == mScreenOn ? this :
+                    new State(mLowPowerMode, screenOn, mMode, mTwilight);
+        }
+
+        State withMode(int mode) {
+            return mode == mMode ? this :
+                    new State(mLowPowerMode, mScreenOn, mode, mTwilight);
+        }
+
+        State withTwilight(TwilightState twilight) {
+            return Objects.equals(twilight, mTwilight) ? this :
+                    new State(mLowPowerMode, mScreenOn, mMode, twilight);
+        }
+
+        /**
+         * @return the update flags for the fields which differ from the given
+         * state, or ALL_CHANGED if there is none
+         */
+        int diff(State other) {
+            if (other == null) {
+                return ALL_CHANGED;
+            }
+            int changes = 0;
+            if (mLowPowerMode != other.mLowPowerMode || mMode != other.mMode) {
+                changes |= MODE_CHANGED;
+            }
+            if (mScreenOn != other.mScreenOn) {
+                changes |= DISPLAY_CHANGED;
+            }
+            if (!Objects.equals(mTwilight, other.mTwilight)) {
+                changes |= TWILIGHT_CHANGED;
+            }
+            return changes;
+        }
 
         @Override
         public String toString() {
@@ -117,7 +184,20 @@ public class LiveDisplayService extends SystemService {
         }
     }
 
-    private final State mState = new State();
+    private final AtomicReference<State> mState = new AtomicReference<>(State.INITIAL);
+
+    // state seen by the last update pass, only used on the handler thread
+    private State mLastState = null;
+
+    // flags of the update pass which is queued, guarded by mUpdateLock
+    private final Object mUpdateLock = new Object();
+    private int mPendingFlags = 0;
+    private long mPassesRequested = 0;
+    private long mPassesExecuted = 0;
+    // settings written by applyProfile, handled by the queued pass
+    private final ArraySet<Uri> mPendingSettings = new ArraySet<>();
+
+    private static final Uri[] NO_SETTINGS = new Uri[0];
 
     public LiveDisplayService(Context context) {
         super(context);
@@ -143,13 +223,24 @@ public class LiveDisplayService extends SystemService {
 
             mAwaitingNudge = getSunsetCounter() < 1;
 
-            mDHC = new DisplayHardwareController(mContext, mHandler);
+            // before the features query the hardware, so a change can't go unnoticed
+            LineageHardwareManager.getInstance(mContext)
+                    .registerCapabilitiesListener(mCapabilitiesListener);
+
+            mCompositor = new DisplayTransformCompositor(mContext, mHandler);
+
+            // features are updated in the order they are added. The color
+            // temperature controller reads the calibration, so it goes after
+            // the hardware controller.
+            mDHC = new DisplayHardwareController(mContext, mHandler, mCompositor);
             mFeatures.add(mDHC);
 
-            mCTC = new ColorTemperatureController(mContext, mHandler, mDHC);
+            mCTC = new ColorTemperatureController(mContext, mHandler, mDHC, mCompositor);
             mFeatures.add(mCTC);
 
-            mOMC = new OutdoorModeController(mContext, mHandler);
+            mLightBus = new AmbientLightBus(mContext, mHandlerThread.getLooper());
+
+            mOMC = new OutdoorModeController(mContext, mHandler, mLightBus);
             mFeatures.add(mOMC);
 
             mPAC = new PictureAdjustmentController(mContext, mHandler);
@@ -181,21 +272,24 @@ public class LiveDisplayService extends SystemService {
             mDisplayManager = (DisplayManager) getContext().getSystemService(
                     Context.DISPLAY_SERVICE);
             mDisplayManager.registerDisplayListener(mDisplayListener, null);
-            mState.mScreenOn = mDisplayManager.getDisplay(
-                    Display.DEFAULT_DISPLAY).getState() == Display.STATE_ON;
+            final boolean screenOn = isScreenOn();
+            publishState(state -> state.withScreenOn(screenOn));
 
             PowerManagerInternal pmi = LocalServices.getService(PowerManagerInternal.class);
             pmi.registerLowPowerModeObserver(mLowPowerModeListener);
             // ServiceType does not matter when retrieving global saver mode.
-            mState.mLowPowerMode =
+            final boolean lowPowerMode =
                     pmi.getLowPowerState(SERVICE_TYPE_DUMMY).globalBatterySaverEnabled;
+            publishState(state -> state.withLowPowerMode(lowPowerMode));
 
             mTwilightTracker.registerListener(mTwilightListener, mHandler);
-            mState.mTwilight = mTwilightTracker.getCurrentState();
+            final TwilightState twilight = mTwilightTracker.getCurrentState();
+            publishState(state -> state.withTwilight(twilight));
 
             if (mConfig.hasModeSupport()) {
                 mModeObserver = new ModeObserver(mHandler);
-                mState.mMode = mModeObserver.getMode();
+                final int mode = mModeObserver.getMode();
+                publishState(state -> state.withMode(mode));
             }
 
             // start and update all features
@@ -207,14 +301,73 @@ public class LiveDisplayService extends SystemService {
         }
     }
 
+    /**
+     * Publishes a new state snapshot.
+     *
+     * @return true if the state changed
+     */
+    private boolean publishState(UnaryOperator<State> change) {
+        State prev, next;
+        do {
+            prev = mState.get();
+            next = change.apply(prev);
+            if (next == prev) {
+                return false;
+            }
+        } while (!mState.compareAndSet(prev, next));
+        return true;
+    }
+
+    /**
+     * Queues an update pass for all features. Events arriving before the queued
+     * pass runs are merged into it, so a burst of changes runs a single pass.
+     */
     private void updateFeatures(final int flags) {
-        mHandler.post(() -> {
-            for (int i = 0; i < mFeatures.size(); i++) {
-                mFeatures.get(i).update(flags, mState);
+        updateFeatures(flags, null);
+    }
+
+    private void updateFeatures(final int flags, final List<Uri> settings) {
+        synchronized (mUpdateLock) {
+            mPassesRequested++;
+            if (mPendingFlags == 0) {
+                mHandler.post(mUpdateRunnable);
+            }
+            mPendingFlags |= flags;
+            if (settings != null) {
+                mPendingSettings.addAll(settings);
             }
-        });
+        }
     }
 
+    private final Runnable mUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final int flags;
+            final Uri[] settings;
+            synchronized (mUpdateLock) {
+                flags = mPendingFlags;
+                mPendingFlags = 0;
+                if (flags == 0) {
+                    return;
+                }
+                mPassesExecuted++;
+                settings = mPendingSettings.isEmpty() ? NO_SETTINGS :
+                        mPendingSettings.toArray(NO_SETTINGS);
+                mPendingSettings.clear();
+            }
+
+            // all features see the same state during a pass
+            final State state = mState.get();
+            final int changes = state.diff(mLastState);
+            mLastState = state;
+
+            mCompositor.setScreenOn(state.mScreenOn);
+            for (int i = 0; i < mFeatures.size(); i++) {
+                mFeatures.get(i).update(flags, state, changes, settings);
+            }
+        }
+    };
+
     private final IBinder mBinder = new ILiveDisplayService.Stub() {
 
         @Override
@@ -225,7 +378,7 @@ public class LiveDisplayService extends SystemService {
         @Override
         public int getMode() {
             if (mConfig != null && mConfig.hasModeSupport()) {
-                return mModeObserver.getMode();
+                return mState.get().mMode;
             } else {
                 return MODE_OFF;
             }
@@ -347,18 +500,36 @@ public class LiveDisplayService extends SystemService {
 
             pw.println();
             pw.println("LiveDisplay Service State:");
-            pw.println("  mState=" + mState.toString());
+            pw.println("  mState=" + mState.get().toString());
             pw.println("  mConfig=" + mConfig.toString());
             pw.println("  mAwaitingNudge=" + mAwaitingNudge);
+            synchronized (mUpdateLock) {
+                pw.println("  passesRequested=" + mPassesRequested +
+                        " passesExecuted=" + mPassesExecuted +
+                        " mPendingFlags=" + mPendingFlags);
+            }
+
+            pw.println();
+            pw.println("  Feature stats:");
+            for (int i = 0; i < mFeatures.size(); i++) {
+                mFeatures.get(i).dumpStats(pw);
+            }
 
             for (int i = 0; i < mFeatures.size(); i++) {
                 mFeatures.get(i).dump(pw);
             }
+            if (mCompositor != null) {
+                mCompositor.dump(pw);
+            }
+            if (mLightBus != null) {
+                mLightBus.dump(pw);
+            }
+            LineageHardwareManager.dumpCallStats(pw);
         }
 
         @Override
         public boolean isNight() {
-            final TwilightState twilight = mTwilightTracker.getCurrentState();
+            final TwilightState twilight = mState.get().mTwilight;
             return twilight != null && twilight.isNight();
         }
 
@@ -373,6 +544,13 @@ public class LiveDisplayService extends SystemService {
                     org.derpfest.Manifest.permission.MANAGE_LIVEDISPLAY, null);
             return mDHC.setAntiFlickerEnabled(enabled);
         }
+
+        @Override
+        public boolean applyProfile(LiveDisplayProfile profile) {
+            mContext.enforceCallingOrSelfPermission(
+                    org.derpfest.Manifest.permission.MANAGE_LIVEDISPLAY, null);
+            return applyProfileInternal(profile);
+        }
     };
 
     // Listener for screen on/off events
@@ -389,9 +567,8 @@ public class LiveDisplayService extends SystemService {
         @Override
         public void onDisplayChanged(int displayId) {
             if (displayId == Display.DEFAULT_DISPLAY) {
-                boolean screenOn = isScreenOn();
-                if (screenOn != mState.mScreenOn) {
-                    mState.mScreenOn = screenOn;
+                final boolean screenOn = isScreenOn();
+                if (publishState(state -> state.withScreenOn(screenOn))) {
                     updateFeatures(DISPLAY_CHANGED);
                 }
             }
@@ -405,8 +582,7 @@ public class LiveDisplayService extends SystemService {
         @Override
         public void onLowPowerModeChanged(PowerSaveState state) {
             final boolean lowPowerMode = state.globalBatterySaverEnabled;
-            if (lowPowerMode != mState.mLowPowerMode) {
-                mState.mLowPowerMode = lowPowerMode;
+            if (publishState(state -> state.withLowPowerMode(lowPowerMode))) {
                 updateFeatures(MODE_CHANGED);
             }
          }
@@ -434,10 +610,8 @@ public class LiveDisplayService extends SystemService {
 
         @Override
         protected void update() {
-            int mode = getMode();
-            if (mode != mState.mMode) {
-                mState.mMode = mode;
-
+            final int mode = getMode();
+            if (publishState(state -> state.withMode(mode))) {
                 updateFeatures(MODE_CHANGED);
             }
         }
@@ -448,27 +622,149 @@ public class LiveDisplayService extends SystemService {
         }
 
         boolean setMode(int mode) {
-            if (mConfig.hasFeature(mode) && mode >= MODE_FIRST && mode <= MODE_LAST) {
-                putInt(DerpFestSettings.System.DISPLAY_TEMPERATURE_MODE, mode);
-                if (mode != mConfig.getDefaultMode()) {
-                    stopNudgingMe();
+            if (isValidMode(mode)) {
+                if (writeMode(mode)) {
+                    updateFeatures(MODE_CHANGED);
                 }
                 return true;
             }
             return false;
         }
+
+        boolean isValidMode(int mode) {
+            return mConfig.hasFeature(mode) && mode >= MODE_FIRST && mode <= MODE_LAST;
+        }
+
+        /**
+         * Stores the mode and publishes it right away, so getMode() doesn't lag
+         * behind the observer.
+         *
+         * @return true if the mode changed
+         */
+        boolean writeMode(int mode) {
+            putInt(DerpFestSettings.System.DISPLAY_TEMPERATURE_MODE, mode);
+            if (mode != mConfig.getDefaultMode()) {
+                stopNudgingMe();
+            }
+            return publishState(state -> state.withMode(mode));
+        }
     }
 
+    private final LineageHardwareManager.CapabilitiesListener mCapabilitiesListener =
+            new LineageHardwareManager.CapabilitiesListener() {
+        @Override
+        public void onCapabilitiesChanged() {
+            // the features and mConfig keep the capabilities they were set up
+            // with, the new ones are stored and take effect on the next boot
+            Slog.w(TAG, "Hardware capabilities changed since they were stored, " +
+                    "they take effect on the next boot");
+        }
+    };
+
     // Night watchman
     private final TwilightListener mTwilightListener = new TwilightListener() {
         @Override
         public void onTwilightStateChanged() {
-            mState.mTwilight = mTwilightTracker.getCurrentState();
-            updateFeatures(TWILIGHT_CHANGED);
+            final TwilightState twilight = mTwilightTracker.getCurrentState();
+            if (publishState(state -> state.withTwilight(twilight))) {
+                updateFeatures(TWILIGHT_CHANGED);
+            }
             nudge();
         }
     };
 
+    /**
+     * Writes the values of the profile which differ from the current ones and
+     * queues a single update pass for them. Nothing is written if the profile
+     * contains a value which isn't supported.
+     */
+    private boolean applyProfileInternal(LiveDisplayProfile profile) {
+        if (mConfig == null || profile == null) {
+            return false;
+        }
+        if ((profile.hasMode() && !(mConfig.hasModeSupport() &&
+                        mModeObserver.isValidMode(profile.getMode()))) ||
+                (profile.hasColorAdjustment() && !mDHC.hasColorAdjustment()) ||
+                (profile.hasAutoContrast() &&
+                        !mConfig.hasFeature(LiveDisplayManager.FEATURE_AUTO_CONTRAST)) ||
+                (profile.hasCABC() && !mConfig.hasFeature(LiveDisplayManager.FEATURE_CABC)) ||
+                (profile.hasColorEnhancement() &&
+                        !mConfig.hasFeature(LiveDisplayManager.FEATURE_COLOR_ENHANCEMENT)) ||
+                (profile.hasAutomaticOutdoorMode() &&
+                        !mConfig.hasFeature(LiveDisplayManager.MODE_OUTDOOR)) ||
+                (profile.hasAntiFlicker() &&
+                        !mConfig.hasFeature(LiveDisplayManager.FEATURE_ANTI_FLICKER)) ||
+                (profile.hasPictureAdjustment() &&
+                        !mConfig.hasFeature(LiveDisplayManager.FEATURE_PICTURE_ADJUSTMENT))) {
+            return false;
+        }
+
+        final List<Uri> changed = new ArrayList<>();
+        if (profile.hasColorAdjustment() &&
+                !Arrays.equals(profile.getColorAdjustment(), mDHC.getColorAdjustment()) &&
+                mDHC.setColorAdjustment(profile.getColorAdjustment())) {
+            changed.add(Settings.System.getUriFor(
+                    DerpFestSettings.System.DISPLAY_COLOR_ADJUSTMENT));
+        }
+        if (profile.hasDayColorTemperature() &&
+                profile.getDayColorTemperature() != mCTC.getDayColorTemperature()) {
+            mCTC.setDayColorTemperature(profile.getDayColorTemperature());
+            changed.add(Settings.System.getUriFor(
+                    DerpFestSettings.System.DISPLAY_TEMPERATURE_DAY));
+        }
+        if (profile.hasNightColorTemperature() &&
+                profile.getNightColorTemperature() != mCTC.getNightColorTemperature()) {
+            mCTC.setNightColorTemperature(profile.getNightColorTemperature());
+            changed.add(Settings.System.getUriFor(
+                    DerpFestSettings.System.DISPLAY_TEMPERATURE_NIGHT));
+        }
+        if (profile.hasAutoContrast() &&
+                profile.isAutoContrastEnabled() != mDHC.isAutoContrastEnabled() &&
+                mDHC.setAutoContrastEnabled(profile.isAutoContrastEnabled())) {
+            changed.add(Settings.System.getUriFor(
+                    DerpFestSettings.System.DISPLAY_AUTO_CONTRAST));
+        }
+        if (profile.hasCABC() &&
+                profile.isCABCEnabled() != mDHC.isCABCEnabled() &&
+                mDHC.setCABCEnabled(profile.isCABCEnabled())) {
+            changed.add(Settings.System.getUriFor(DerpFestSettings.System.DISPLAY_CABC));
+        }
+        if (profile.hasColorEnhancement() &&
+                profile.isColorEnhancementEnabled() != mDHC.isColorEnhancementEnabled() &&
+                mDHC.setColorEnhancementEnabled(profile.isColorEnhancementEnabled())) {
+            changed.add(Settings.System.getUriFor(
+                    DerpFestSettings.System.DISPLAY_COLOR_ENHANCE));
+        }
+        if (profile.hasAutomaticOutdoorMode() &&
+                profile.isAutomaticOutdoorModeEnabled() != mOMC.isAutomaticOutdoorModeEnabled() &&
+                mOMC.setAutomaticOutdoorModeEnabled(profile.isAutomaticOutdoorModeEnabled())) {
+            changed.add(Settings.System.getUriFor(
+                    DerpFestSettings.System.DISPLAY_AUTO_OUTDOOR_MODE));
+        }
+        if (profile.hasAntiFlicker() &&
+                profile.isAntiFlickerEnabled() != mDHC.isAntiFlickerEnabled() &&
+                mDHC.setAntiFlickerEnabled(profile.isAntiFlickerEnabled())) {
+            changed.add(Settings.System.getUriFor(
+                    DerpFestSettings.System.DISPLAY_ANTI_FLICKER));
+        }
+        if (profile.hasPictureAdjustment() &&
+                !profile.getPictureAdjustment().flatten().equals(
+                        mPAC.getPictureAdjustment().flatten()) &&
+                mPAC.setPictureAdjustment(profile.getPictureAdjustment())) {
+            changed.add(Settings.System.getUriFor(
+                    DerpFestSettings.System.DISPLAY_PICTURE_ADJUSTMENT));
+        }
+
+        int flags = changed.isEmpty() ? 0 : SETTINGS_CHANGED;
+        if (profile.hasMode() && mModeObserver.writeMode(profile.getMode())) {
+            flags |= MODE_CHANGED;
+        }
+        if (flags != 0) {
+            updateFeatures(flags, changed);
+        }
+        return true;
+    }
+
     private boolean isScreenOn() {
         return mDisplayManager.getDisplay(
                 Display.DEFAULT_DISPLAY).getState() == Display.STATE_ON;
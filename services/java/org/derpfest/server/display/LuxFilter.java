@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.derpfest.server.display;
+
+import java.util.Arrays;
+
+/**
+ * Smooths ambient light samples over a fixed duration sliding window before
+ * {@link AmbientLuxObserver} compares them against its threshold.
+ *
+ * Samples are kept in preallocated arrays, so adding samples and reading the
+ * filtered value don't allocate. If the window fills up, the oldest sample is
+ * dropped. Implementations are not thread-safe.
+ */
+abstract class LuxFilter {
+
+    static final int AVERAGE = 0;
+    static final int TRAPEZOIDAL = 1;
+    static final int EMA = 2;
+    static final int MEDIAN = 3;
+
+    static final int[] TYPES = { AVERAGE, TRAPEZOIDAL, EMA, MEDIAN };
+
+    protected final long[] mTimestamps;
+    protected final float[] mValues;
+    protected final int mPeriod;
+
+    // index of the oldest sample and number of samples
+    protected int mHead = 0;
+    protected int mSize = 0;
+
+    /**
+     * @param type one of {@link #AVERAGE}, {@link #TRAPEZOIDAL}, {@link #EMA} or {@link #MEDIAN}
+     * @param period window length in milliseconds
+     * @param capacity maximum number of samples kept
+     */
+    static LuxFilter create(int type, int period, int capacity) {
+        switch (type) {
+            case TRAPEZOIDAL:
+                return new Trapezoidal(period, capacity);
+            case EMA:
+                return new Ema(period, capacity);
+            case MEDIAN:
+                return new Median(period, capacity);
+            default:
+                return new Average(period, capacity);
+        }
+    }
+
+    LuxFilter(int period, int capacity) {
+        mPeriod = period;
+        mTimestamps = new long[Math.max(2, capacity)];
+        mValues = new float[mTimestamps.length];
+    }
+
+    abstract String getName();
+
+    /**
+     * Adds a sample taken at the given time, in milliseconds.
+     */
+    void add(long now, float sample) {
+        expire(now);
+        if (sample == 0.0f && mSize == 0) {
+            return;
+        }
+        if (mSize == mValues.length) {
+            pop();
+        }
+        final int tail = index(mSize);
+        mTimestamps[tail] = now;
+        mValues[tail] = sample;
+        mSize++;
+        onAdded(now, sample);
+    }
+
+    /**
+     * @return the filtered lux at the given time, in milliseconds
+     */
+    float getValue(long now) {
+        expire(now);
+        return mSize == 0 ? 0.0f : computeValue(now);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    void clear() {
+        mHead = 0;
+        mSize = 0;
+        onCleared();
+    }
+
+    protected abstract float computeValue(long now);
+
+    protected void onAdded(long now, float sample) { }
+
+    protected void onRemoved(float sample) { }
+
+    protected void onCleared() { }
+
+    /**
+     * @return the array index of the i-th oldest sample
+     */
+    protected final int index(int i) {
+        return (mHead + i) % mValues.length;
+    }
+
+    private void expire(long now) {
+        while (mSize > 1 && ((now - mTimestamps[mHead]) > mPeriod)) {
+            pop();
+        }
+    }
+
+    private void pop() {
+        final float sample = mValues[mHead];
+        mHead = (mHead + 1) % mValues.length;
+        mSize--;
+        onRemoved(sample);
+        if (mSize == 0) {
+            onCleared();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mSize; i++) {
+            final int index = index(i);
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append("(").append(mValues[index]).append(", ")
+                    .append(mTimestamps[index]).append(")");
+        }
+        return getName() + " length=" + mSize + " capacity=" + mValues.length +
+                " mRing=[" + sb + "]";
+    }
+
+    /**
+     * Simple moving average, kept as a running total.
+     */
+    static final class Average extends LuxFilter {
+        private double mTotal = 0.0;
+
+        Average(int period, int capacity) {
+            super(period, capacity);
+        }
+
+        @Override
+        String getName() {
+            return "average";
+        }
+
+        @Override
+        protected float computeValue(long now) {
+            return (float) (mTotal / mSize);
+        }
+
+        @Override
+        protected void onAdded(long now, float sample) {
+            mTotal += sample;
+        }
+
+        @Override
+        protected void onRemoved(float sample) {
+            mTotal -= sample;
+        }
+
+        @Override
+        protected void onCleared() {
+            // don't let rounding errors accumulate
+            mTotal = 0.0;
+        }
+    }
+
+    /**
+     * Time weighted average: the integral of the linearly interpolated samples
+     * up to now, divided by the time covered. Bursts of samples don't outweigh
+     * a long steady reading.
+     */
+    static final class Trapezoidal extends LuxFilter {
+        Trapezoidal(int period, int capacity) {
+            super(period, capacity);
+        }
+
+        @Override
+        String getName() {
+            return "trapezoidal";
+        }
+
+        @Override
+        protected float computeValue(long now) {
+            double area = 0.0;
+            int prev = index(0);
+            for (int i = 1; i < mSize; i++) {
+                final int cur = index(i);
+                area += (mTimestamps[cur] - mTimestamps[prev])
+                        * (mValues[cur] + mValues[prev]) / 2.0;
+                prev = cur;
+            }
+            // the latest sample holds until now
+            area += Math.max(0, now - mTimestamps[prev]) * mValues[prev];
+
+            final long span = now - mTimestamps[index(0)];
+            return span <= 0 ? mValues[prev] : (float) (area / span);
+        }
+    }
+
+    /**
+     * Exponential moving average with a time constant of half the window,
+     * independent of the sample rate.
+     */
+    static final class Ema extends LuxFilter {
+        private float mEma;
+        private long mLastTime;
+        private boolean mValid;
+
+        Ema(int period, int capacity) {
+            super(period, capacity);
+        }
+
+        @Override
+        String getName() {
+            return "ema";
+        }
+
+        @Override
+        protected float computeValue(long now) {
+            return mEma;
+        }
+
+        @Override
+        protected void onAdded(long now, float sample) {
+            if (!mValid) {
+                mEma = sample;
+                mValid = true;
+            } else {
+                final float tau = Math.max(1, mPeriod / 2);
+                final float alpha = 1.0f - (float) Math.exp(-(now - mLastTime) / tau);
+                mEma += alpha * (sample - mEma);
+            }
+            mLastTime = now;
+        }
+
+        @Override
+        protected void onCleared() {
+            mValid = false;
+        }
+    }
+
+    /**
+     * Median of the window, ignores short spikes and dips entirely.
+     */
+    static final class Median extends LuxFilter {
+        private final float[] mScratch;
+
+        Median(int period, int capacity) {
+            super(period, capacity);
+            mScratch = new float[mValues.length];
+        }
+
+        @Override
+        String getName() {
+            return "median";
+        }
+
+        @Override
+        protected float computeValue(long now) {
+            for (int i = 0; i < mSize; i++) {
+                mScratch[i] = mValues[index(i)];
+            }
+            Arrays.sort(mScratch, 0, mSize);
+            final int mid = mSize / 2;
+            return (mSize % 2) == 1 ? mScratch[mid] : (mScratch[mid - 1] + mScratch[mid]) / 2.0f;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.derpfest.server.display;
+
+import java.io.PrintWriter;
+
+/**
+ * Replays a recorded lux trace through a {@link LuxFilter} and the transition
+ * logic of {@link AmbientLuxObserver}, to compare filters offline.
+ *
+ * Every transition is an outdoor mode hardware write, so the goal is few
+ * transitions which still follow real changes in light quickly. Latency is
+ * measured from the last time the raw samples crossed the threshold in the
+ * direction of the transition.
+ */
+final class LuxTraceReplayer {
+
+    static final class Result {
+        final String filter;
+        final int transitions;
+        final long meanLatency;
+        final long maxLatency;
+
+        Result(String filter, int transitions, long meanLatency, long maxLatency) {
+            this.filter = filter;
+            this.transitions = transitions;
+            this.meanLatency = meanLatency;
+            this.maxLatency = maxLatency;
+        }
+
+        @Override
+        public String toString() {
+            return filter + ": transitions=" + transitions +
+                    " meanLatency=" + meanLatency + "ms maxLatency=" + maxLatency + "ms";
+        }
+    }
+
+    private LuxTraceReplayer() {
+        // This class is not supposed to be instantiated
+    }
+
+    /**
+     * Replays the trace the way the observer would see it, including the
+     * re-evaluations it schedules when the sensor goes quiet.
+     *
+     * @param times sample timestamps in milliseconds, ascending
+     * @param lux sample values
+     */
+    static Result replay(long[] times, float[] lux, int filterType, float thresholdLux,
+            float hysteresisLux, int thresholdDuration, int sensorRate) {
+        final LuxFilter filter = LuxFilter.create(filterType, thresholdDuration,
+                AmbientLuxObserver.getFilterCapacity(thresholdDuration, sensorRate));
+
+        int state = AmbientLuxObserver.LOW;
+        int transitions = 0;
+        long totalLatency = 0;
+        long maxLatency = 0;
+
+        // last time the raw samples went above or below the threshold
+        long rawUp = -1;
+        long rawDown = -1;
+        boolean rawHigh = false;
+
+        long recheck = -1;
+        int i = 0;
+        while (i < times.length || recheck >= 0) {
+            final long now;
+            if (i < times.length && (recheck < 0 || times[i] <= recheck)) {
+                now = times[i];
+                final float sample = lux[i++];
+                filter.add(now, sample);
+
+                if (!rawHigh && sample >= thresholdLux) {
+                    rawHigh = true;
+                    rawUp = now;
+                } else if (rawHigh && sample < thresholdLux - hysteresisLux) {
+                    rawHigh = false;
+                    rawDown = now;
+                }
+            } else {
+                now = recheck;
+            }
+
+            final float ambientLux = filter.getValue(now);
+            final int direction = AmbientLuxObserver.getDirection(state, ambientLux,
+                    thresholdLux, hysteresisLux);
+            if (direction != state) {
+                state = direction;
+                transitions++;
+                final long since = direction == AmbientLuxObserver.HIGH ? rawUp : rawDown;
+                final long latency = since < 0 ? 0 : now - since;
+                totalLatency += latency;
+                maxLatency = Math.max(maxLatency, latency);
+            }
+
+            recheck = filter.size() > 1 ? now + thresholdDuration / 2 : -1;
+        }
+
+        return new Result(filter.getName(), transitions,
+                transitions == 0 ? 0 : totalLatency / transitions, maxLatency);
+    }
+
+    /**
+     * Replays the trace through every available filter and prints the results.
+     */
+    static void replayAll(PrintWriter pw, long[] times, float[] lux, float thresholdLux,
+            float hysteresisLux, int thresholdDuration, int sensorRate) {
+        pw.println("Lux trace replay: " + times.length + " samples, threshold=" +
+                thresholdLux + " hysteresis=" + hysteresisLux + " window=" +
+                thresholdDuration + "ms");
+        for (int type : LuxFilter.TYPES) {
+            pw.println("  " + replay(times, lux, type, thresholdLux, hysteresisLux,
+                    thresholdDuration, sensorRate));
+        }
+    }
+}
@@ -52,9 +52,12 @@ public class OutdoorModeController extends LiveDisplayFeature {
     // sliding window for sensor event smoothing
     private static final int SENSOR_WINDOW_MS = 3000;
 
-    public OutdoorModeController(Context context, Handler handler) {
+    private final AmbientLightBus mLightBus;
+
+    public OutdoorModeController(Context context, Handler handler, AmbientLightBus lightBus) {
         super(context, handler);
 
+        mLightBus = lightBus;
         mHardware = LineageHardwareManager.getInstance(mContext);
         mUseOutdoorMode = mHardware.isSupported(LineageHardwareManager.FEATURE_SUNLIGHT_ENHANCEMENT);
 
@@ -72,7 +75,7 @@ public class OutdoorModeController extends LiveDisplayFeature {
             return;
         }
 
-        mLuxObserver = new AmbientLuxObserver(mContext, mHandler.getLooper(),
+        mLuxObserver = new AmbientLuxObserver(mLightBus,
                 mDefaultOutdoorLux, mOutdoorLuxHysteresis, SENSOR_WINDOW_MS);
 
         registerSettings(
@@ -112,6 +115,7 @@ public class OutdoorModeController extends LiveDisplayFeature {
         if (!isScreenOn() && getMode() != MODE_OUTDOOR) {
             mIsOutdoor = false;
             mHardware.set(LineageHardwareManager.FEATURE_SUNLIGHT_ENHANCEMENT, false);
+            noteHardwareWrite();
         }
     }
 
@@ -210,6 +214,7 @@ public class OutdoorModeController extends LiveDisplayFeature {
                 }
             }
             mHardware.set(LineageHardwareManager.FEATURE_SUNLIGHT_ENHANCEMENT, enabled);
+            noteHardwareWrite();
         }
     }
 
@@ -217,6 +222,7 @@ public class OutdoorModeController extends LiveDisplayFeature {
             new AmbientLuxObserver.TransitionListener() {
         @Override
         public void onTransition(final int state, float ambientLux) {
+            noteWakeup();
             final boolean outdoor = state == 1;
             synchronized (OutdoorModeController.this) {
                 if (mIsOutdoor == outdoor) {
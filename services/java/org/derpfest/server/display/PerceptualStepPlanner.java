@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.derpfest.server.display;
+
+import org.derpfest.util.ColorUtils;
+
+import java.util.Arrays;
+
+/**
+ * Plans display color transitions in perceptually even steps.
+ *
+ * A transition is a path from one white point to another. The planner finds the
+ * fewest points along it such that no two adjacent points differ by more than the
+ * just noticeable difference (CIEDE2000), so a transition that is barely visible
+ * takes a handful of steps while a large one still looks smooth.
+ *
+ * Plans only depend on their inputs and hold no state, so they can be checked
+ * without a device.
+ */
+final class PerceptualStepPlanner {
+
+    /**
+     * A white point along a transition, fraction runs from 0 (start) to 1 (end).
+     */
+    interface WhitePointPath {
+        void getWhitePoint(float fraction, float[] outRgb);
+    }
+
+    // a delta E of about 1 is the smallest difference most people notice
+    static final double DEFAULT_JND = 1.0;
+
+    // upper bound for the number of steps in one transition
+    static final int MAX_STEPS = 256;
+
+    private static final int SEARCH_ITERATIONS = 12;
+
+    private final double mJnd;
+
+    PerceptualStepPlanner(double jnd) {
+        mJnd = jnd;
+    }
+
+    double getJnd() {
+        return mJnd;
+    }
+
+    /**
+     * @return the ascending fractions of the steps along the path, the last one is always 1
+     */
+    float[] plan(WhitePointPath path) {
+        final float[] rgb = new float[3];
+        final float[] steps = new float[MAX_STEPS];
+        int count = 0;
+
+        float fraction = 0.0f;
+        float[] from = lab(path, fraction, rgb);
+        final float[] end = lab(path, 1.0f, rgb);
+
+        while (count < MAX_STEPS - 1 && deltaE(from, end) > mJnd) {
+            // largest step from here which is still below the threshold
+            float lo = fraction;
+            float hi = 1.0f;
+            for (int i = 0; i < SEARCH_ITERATIONS; i++) {
+                final float mid = (lo + hi) / 2.0f;
+                if (deltaE(from, lab(path, mid, rgb)) > mJnd) {
+                    hi = mid;
+                } else {
+                    lo = mid;
+                }
+            }
+            // always make progress, even on paths with a very steep section
+            fraction = Math.max(lo, fraction + 1.0f / MAX_STEPS);
+            if (fraction >= 1.0f) {
+                break;
+            }
+            steps[count++] = fraction;
+            from = lab(path, fraction, rgb);
+        }
+        steps[count++] = 1.0f;
+
+        return Arrays.copyOf(steps, count);
+    }
+
+    /**
+     * Plans a straight line between two RGB white points.
+     */
+    float[] plan(final float[] startRgb, final float[] endRgb) {
+        return plan((fraction, out) -> {
+            for (int i = 0; i < 3; i++) {
+                out[i] = startRgb[i] + (endRgb[i] - startRgb[i]) * fraction;
+            }
+        });
+    }
+
+    /**
+     * Plans a transition along the black body curve between two color temperatures.
+     */
+    float[] planTemperature(final int startK, final int endK) {
+        return plan((fraction, out) -> {
+            final float[] rgb = ColorUtils.temperatureToRGB(
+                    Math.round(startK + (endK - startK) * fraction));
+            System.arraycopy(rgb, 0, out, 0, 3);
+        });
+    }
+
+    /**
+     * Evenly spaced steps, for transitions without a known white point.
+     */
+    static float[] uniform(int steps) {
+        final int count = Math.max(1, Math.min(steps, MAX_STEPS));
+        final float[] plan = new float[count];
+        for (int i = 0; i < count; i++) {
+            plan[i] = (float) (i + 1) / count;
+        }
+        return plan;
+    }
+
+    /**
+     * @return the time at which the given step of a plan spread over the duration is due
+     */
+    static long getStepTime(long start, long duration, int steps, int index) {
+        return start + duration * (index + 1) / steps;
+    }
+
+    /**
+     * @return the last step of a plan spread over the duration which is due at the
+     * given time, or -1 if none is due yet
+     */
+    static int getStepIndex(long now, long start, long duration, int steps) {
+        if (duration <= 0 || now >= start + duration) {
+            return steps - 1;
+        }
+        final long index = (now - start) * steps / duration - 1;
+        return (int) Math.max(-1, Math.min(steps - 1, index));
+    }
+
+    private static float[] lab(WhitePointPath path, float fraction, float[] rgb) {
+        path.getWhitePoint(fraction, rgb);
+        return ColorUtils.convertRGBtoLAB(rgb[0], rgb[1], rgb[2]);
+    }
+
+    private static double deltaE(float[] lab1, float[] lab2) {
+        return ColorUtils.calculateDeltaE(lab1[0], lab1[1], lab1[2],
+                lab2[0], lab2[1], lab2[2]);
+    }
+}
@@ -46,6 +46,16 @@ public class PictureAdjustmentController extends LiveDisplayFeature {
 
     private List<Range<Float>> mRanges = new ArrayList<Range<Float>>();
 
+    // parsed DISPLAY_PICTURE_ADJUSTMENT, only reparsed when the setting changes
+    private final SparseArray<HSIC> mAdjustments = new SparseArray<HSIC>();
+    private String mPacked = null;
+    private boolean mLoaded = false;
+
+    // there's no notification for display mode changes, clients set them
+    // through the HAL directly, so this is refreshed once per update and
+    // once per binder call
+    private int mDisplayModeId = 0;
+
     public PictureAdjustmentController(Context context, Handler handler) {
         super(context, handler);
         mHardware = LineageHardwareManager.getInstance(context);
@@ -86,6 +96,9 @@ public class PictureAdjustmentController extends LiveDisplayFeature {
 
     @Override
     protected void onSettingsChanged(Uri uri) {// nothing to do for mode switch
+        synchronized (this) {
+            loadPreference();
+        }
         updatePictureAdjustment();
     }
 
@@ -98,6 +111,7 @@ public class PictureAdjustmentController extends LiveDisplayFeature {
         if (mUsePictureAdjustment && isScreenOn()) {
             final HSIC hsic = getPictureAdjustment();
             if (hsic != null) {
+                noteHardwareWrite();
                 if (!mHardware.setPictureAdjustment(hsic)) {
                     Slog.e(TAG, "Failed to set picture adjustment! " + hsic.toString());
                 }
@@ -165,17 +179,10 @@ public class PictureAdjustmentController extends LiveDisplayFeature {
         return hsic;
     }
 
-    HSIC getPictureAdjustment() {
+    synchronized HSIC getPictureAdjustment() {
         HSIC hsic = null;
         if (mUsePictureAdjustment) {
-            int modeID = 0;
-            if (mHasDisplayModes) {
-                DisplayMode mode = mHardware.getCurrentDisplayMode();
-                if (mode != null) {
-                    modeID = mode.id;
-                }
-            }
-            hsic = getPAForMode(modeID);
+            hsic = getPAForMode(refreshDisplayMode());
         }
         if (hsic == null) {
             hsic = new HSIC(0.0f, 0.0f, 0.0f, 0.0f, 0.0f);
@@ -183,64 +190,88 @@ public class PictureAdjustmentController extends LiveDisplayFeature {
         return hsic;
     }
 
-    boolean setPictureAdjustment(HSIC hsic) {
+    synchronized boolean setPictureAdjustment(HSIC hsic) {
         if (mUsePictureAdjustment && hsic != null) {
-            int modeID = 0;
-            if (mHasDisplayModes) {
-                DisplayMode mode = mHardware.getCurrentDisplayMode();
-                if (mode != null) {
-                    modeID = mode.id;
-                }
-            }
-            setPAForMode(modeID, hsic);
+            setPAForMode(refreshDisplayMode(), hsic);
             return true;
         }
         return false;
     }
 
+    private int refreshDisplayMode() {
+        if (mHasDisplayModes) {
+            final DisplayMode mode = mHardware.getCurrentDisplayMode();
+            mDisplayModeId = mode != null ? mode.id : 0;
+        }
+        return mDisplayModeId;
+    }
+
     // TODO: Expose mode-based settings to upper layers
 
     private HSIC getPAForMode(int mode) {
-        final SparseArray<HSIC> prefs = unpackPreference();
-        if (prefs.indexOfKey(mode) >= 0) {
-            return prefs.get(mode);
+        if (!mLoaded) {
+            loadPreference();
         }
-        return getDefaultPictureAdjustment();
+        final HSIC hsic = mAdjustments.get(mode);
+        return hsic != null ? hsic : getDefaultPictureAdjustment();
     }
 
     private void setPAForMode(int mode, HSIC hsic) {
-        final SparseArray<HSIC> prefs = unpackPreference();
-        prefs.put(mode, hsic);
-        packPreference(prefs);
+        if (!mLoaded) {
+            loadPreference();
+        }
+        mAdjustments.put(mode, hsic);
+        mPacked = packPreference(mAdjustments);
+        putString(DerpFestSettings.System.DISPLAY_PICTURE_ADJUSTMENT, mPacked);
     }
 
-    private SparseArray<HSIC> unpackPreference() {
-        final SparseArray<HSIC> ret = new SparseArray<HSIC>();
+    /**
+     * Reparses the setting, unless it still holds what was last seen.
+     */
+    private void loadPreference() {
+        final String pref = getString(DerpFestSettings.System.DISPLAY_PICTURE_ADJUSTMENT);
+        if (mLoaded && TextUtils.equals(pref, mPacked)) {
+            return;
+        }
+        mLoaded = true;
+        mPacked = pref;
+        mAdjustments.clear();
 
-        String pref = getString(DerpFestSettings.System.DISPLAY_PICTURE_ADJUSTMENT);
         if (pref != null) {
             String[] byMode = TextUtils.split(pref, ",");
             for (String mode : byMode) {
                 String[] modePA = TextUtils.split(mode, ":");
                 if (modePA.length == 2) {
-                    ret.put(Integer.valueOf(modePA[0]), HSIC.unflattenFrom(modePA[1]));
+                    try {
+                        mAdjustments.put(Integer.parseInt(modePA[0]),
+                                HSIC.unflattenFrom(modePA[1]));
+                    } catch (NumberFormatException e) {
+                        Slog.w(TAG, "Ignoring invalid picture adjustment: " + mode);
+                    }
                 }
             }
         }
-        return ret;
     }
 
-    private void packPreference(final SparseArray<HSIC> modes) {
-        StringBuilder sb = new StringBuilder();
+    /**
+     * Same layout as HSIC.flatten(), but with the shortest representation which
+     * parses back to the same float instead of fixed precision formatting. Older
+     * builds read it just the same.
+     */
+    private static String packPreference(final SparseArray<HSIC> modes) {
+        final StringBuilder sb = new StringBuilder();
         for (int i = 0; i < modes.size(); i++) {
-            int id = modes.keyAt(i);
-            HSIC m = modes.get(id);
+            final HSIC m = modes.valueAt(i);
             if (i > 0) {
-                sb.append(",");
+                sb.append(',');
             }
-            sb.append(id).append(":").append(m.flatten());
+            sb.append(modes.keyAt(i)).append(':')
+                    .append(m.getHue()).append('|')
+                    .append(m.getSaturation()).append('|')
+                    .append(m.getIntensity()).append('|')
+                    .append(m.getContrast()).append('|')
+                    .append(m.getSaturationThreshold());
         }
-        putString(DerpFestSettings.System.DISPLAY_PICTURE_ADJUSTMENT, sb.toString());
+        return sb.toString();
     }
-
 }
@@ -18,6 +18,7 @@
 package org.derpfest.server.display;
 
 import android.text.format.DateUtils;
+import android.util.LruCache;
 
 /** @hide */
 public class TwilightCalculator {
@@ -46,6 +47,139 @@ public class TwilightCalculator {
     // Java time on Jan 1, 2000 12:00 UTC.
     private static final long UTC_2000 = 946728000000L;
 
+    // mean anomaly at J2000 and its daily motion
+    private static final double MEAN_ANOMALY_2000 = 6.240059968;
+    private static final double MEAN_ANOMALY_PER_DAY = 0.01720197;
+
+    // locations are cached in steps of 0.1 degrees, which moves twilight
+    // by well under a minute
+    static final int LOCATION_STEPS_PER_DEGREE = 10;
+
+    private static final int CACHE_SIZE = 16;
+
+    private static final LruCache<Long, DayTwilight> sCache = new LruCache<>(CACHE_SIZE);
+
+    /**
+     * Civil twilight of one solar day at one location. Instances are immutable and
+     * may be shared between threads.
+     */
+    public static final class DayTwilight {
+        /** Solar day, counted from Jan 1, 2000 */
+        public final int day;
+
+        /**
+         * Time of sunrise (civil twilight) in milliseconds or -1 in the case the
+         * day or night never ends.
+         */
+        public final long sunrise;
+
+        /**
+         * Time of sunset (civil twilight) in milliseconds or -1 in the case the day
+         * or night never ends.
+         */
+        public final long sunset;
+
+        // state of the whole day if it never ends
+        private final int mPolarState;
+
+        private DayTwilight(int day, long sunrise, long sunset, int polarState) {
+            this.day = day;
+            this.sunrise = sunrise;
+            this.sunset = sunset;
+            mPolarState = polarState;
+        }
+
+        /**
+         * @return {@link #DAY} or {@link #NIGHT} at the given time
+         */
+        public int getState(long time) {
+            if (sunrise == -1 || sunset == -1) {
+                return mPolarState;
+            }
+            return sunrise < time && sunset > time ? DAY : NIGHT;
+        }
+
+        @Override
+        public String toString() {
+            return "DayTwilight{day=" + day + ", sunrise=" + sunrise
+                    + ", sunset=" + sunset + "}";
+        }
+    }
+
+    /**
+     * Calculates the civil twilight of consecutive days around the given time.
+     * Results are cached per location, rounded to 0.1 degrees, and day. This
+     * method is thread-safe.
+     *
+     * @param time time in milliseconds, selects the solar day with offset 0.
+     * @param latitude latitude in degrees.
+     * @param longitude longitude in degrees.
+     * @param firstDayOffset offset of the first day to return, -1 for yesterday.
+     * @param dayCount number of days to return.
+     * @return twilight of each requested day, in order
+     */
+    public static DayTwilight[] calculateTwilight(long time, double latitude,
+            double longitude, int firstDayOffset, int dayCount) {
+        final int lat = (int) Math.round(latitude * LOCATION_STEPS_PER_DEGREE);
+        final int lng = (int) Math.round(longitude * LOCATION_STEPS_PER_DEGREE);
+
+        // terms which only depend on the location
+        final double latRad = (double) lat / LOCATION_STEPS_PER_DEGREE * DEGREES_TO_RADIANS;
+        final double sinLat = Math.sin(latRad);
+        final double cosLat = Math.cos(latRad);
+        final double arcLongitude = -((double) lng / LOCATION_STEPS_PER_DEGREE) / 360;
+
+        final float daysSince2000 = (float) (time - UTC_2000) / DateUtils.DAY_IN_MILLIS;
+        final int today = Math.round(daysSince2000 - J0 - (float) arcLongitude);
+
+        final DayTwilight[] result = new DayTwilight[dayCount];
+        for (int i = 0; i < dayCount; i++) {
+            final int day = today + firstDayOffset + i;
+            final long key = getCacheKey(lat, lng, day);
+            DayTwilight twilight = sCache.get(key);
+            if (twilight == null) {
+                twilight = calculateDay(day, sinLat, cosLat, arcLongitude);
+                sCache.put(key, twilight);
+            }
+            result[i] = twilight;
+        }
+        return result;
+    }
+
+    private static DayTwilight calculateDay(int day, double sinLat, double cosLat,
+            double arcLongitude) {
+        // evaluate the orbit at the approximate solar transit of the day
+        final double approxTransit = day + J0 + arcLongitude;
+
+        final double meanAnomaly = MEAN_ANOMALY_2000 + approxTransit * MEAN_ANOMALY_PER_DAY;
+        final double trueAnomaly = meanAnomaly + C1 * Math.sin(meanAnomaly) + C2
+                * Math.sin(2 * meanAnomaly) + C3 * Math.sin(3 * meanAnomaly);
+        final double solarLng = trueAnomaly + 1.796593063f + Math.PI;
+
+        final double solarTransitJ2000 = approxTransit + 0.0053f * Math.sin(meanAnomaly)
+                + -0.0069f * Math.sin(2 * solarLng);
+        final double solarDec = Math.asin(Math.sin(solarLng) * Math.sin(OBLIQUITY));
+
+        final double cosHourAngle = (Math.sin(ALTIDUTE_CORRECTION_CIVIL_TWILIGHT) - sinLat
+                * Math.sin(solarDec)) / (cosLat * Math.cos(solarDec));
+        if (cosHourAngle >= 1) {
+            return new DayTwilight(day, -1, -1, NIGHT);
+        } else if (cosHourAngle <= -1) {
+            return new DayTwilight(day, -1, -1, DAY);
+        }
+
+        final double hourAngle = Math.acos(cosHourAngle) / (2 * Math.PI);
+        return new DayTwilight(day,
+                Math.round((solarTransitJ2000 - hourAngle) * DateUtils.DAY_IN_MILLIS) + UTC_2000,
+                Math.round((solarTransitJ2000 + hourAngle) * DateUtils.DAY_IN_MILLIS) + UTC_2000,
+                -1);
+    }
+
+    private static long getCacheKey(int lat, int lng, int day) {
+        // lat needs 11 bits and lng 12 bits once shifted to be positive
+        return ((long) day << 23) | ((long) (lat + 900) << 12) | (lng + 1800);
+    }
+
     /**
      * Time of sunset (civil twilight) in milliseconds or -1 in the case the day
      * or night never ends.
@@ -64,6 +198,9 @@ public class TwilightCalculator {
     /**
      * calculates the civil twilight bases on time and geo-coordinates.
      *
+     * Results are stored in the fields of this instance, so it must not be shared
+     * between threads. Prefer {@link #calculateTwilight(long, double, double, int, int)}.
+     *
      * @param time time in milliseconds.
      * @param latiude latitude in degrees.
      * @param longitude latitude in degrees.
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.derpfest.server.display;
+
+import android.location.Location;
+import android.os.Environment;
+import android.text.format.DateUtils;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import com.android.internal.os.BackgroundThread;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.TimeZone;
+
+/**
+ * Keeps the last real location used for twilight calculations across reboots,
+ * so the twilight state is right at boot instead of being estimated from the
+ * timezone until a new location comes in.
+ *
+ * Only what twilight needs is kept: the location rounded to the precision of
+ * the {@link TwilightCalculator} cache and the time rounded to the hour. The
+ * provider is not stored.
+ */
+final class TwilightLocationStore {
+    private static final String TAG = "TwilightLocationStore";
+
+    private static final String FILE_NAME = "livedisplay_twilight_location";
+    private static final int VERSION = 2;
+
+    private static final String RESTORED_PROVIDER = "restored";
+
+    // a location older than this might be from somewhere else entirely
+    private static final long MAX_AGE = 7 * DateUtils.DAY_IN_MILLIS;
+
+    private final AtomicFile mFile;
+
+    TwilightLocationStore() {
+        this(new File(Environment.getDataSystemDirectory(), FILE_NAME));
+    }
+
+    TwilightLocationStore(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    /**
+     * Reads the stored location. Only returns it if it was stored in the current
+     * timezone and isn't stale.
+     *
+     * @return the stored location, or null
+     */
+    Location restore() {
+        try (DataInputStream in = new DataInputStream(mFile.openRead())) {
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            final String timeZone = in.readUTF();
+            final long time = in.readLong();
+            final double latitude = in.readDouble();
+            final double longitude = in.readDouble();
+            final float accuracy = in.readFloat();
+
+            final long now = System.currentTimeMillis();
+            if (!timeZone.equals(TimeZone.getDefault().getID())) {
+                Slog.i(TAG, "Timezone changed, not restoring location");
+                return null;
+            }
+            if (time > now || now - time > MAX_AGE) {
+                Slog.i(TAG, "Stored location is stale, not restoring it");
+                return null;
+            }
+
+            final Location location = new Location(RESTORED_PROVIDER);
+            location.setLatitude(latitude);
+            location.setLongitude(longitude);
+            location.setAccuracy(accuracy);
+            location.setTime(time);
+            // any fix received after boot is newer
+            location.setElapsedRealtimeNanos(0);
+            return location;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to read " + mFile.getBaseFile(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the given location, coarsened, in the background.
+     */
+    void store(Location location) {
+        final String timeZone = TimeZone.getDefault().getID();
+        final long fixTime =
+                location.getTime() > 0 ? location.getTime() : System.currentTimeMillis();
+        final long time = fixTime - fixTime % DateUtils.HOUR_IN_MILLIS;
+        final double latitude = coarsen(location.getLatitude());
+        final double longitude = coarsen(location.getLongitude());
+        final float accuracy = location.getAccuracy();
+
+        BackgroundThread.getHandler().post(() -> {
+            FileOutputStream fos = null;
+            try {
+                fos = mFile.startWrite();
+                final DataOutputStream out = new DataOutputStream(fos);
+                out.writeInt(VERSION);
+                out.writeUTF(timeZone);
+                out.writeLong(time);
+                out.writeDouble(latitude);
+                out.writeDouble(longitude);
+                out.writeFloat(accuracy);
+                out.flush();
+                mFile.finishWrite(fos);
+            } catch (IOException e) {
+                Slog.w(TAG, "Failed to write " + mFile.getBaseFile(), e);
+                mFile.failWrite(fos);
+            }
+        });
+    }
+
+    /**
+     * Deletes the stored location in the background, for when it may no longer
+     * be kept: location was turned off or another user took over.
+     */
+    void delete() {
+        BackgroundThread.getHandler().post(mFile::delete);
+    }
+
+    private static double coarsen(double degrees) {
+        return (double) Math.round(degrees * TwilightCalculator.LOCATION_STEPS_PER_DEGREE)
+                / TwilightCalculator.LOCATION_STEPS_PER_DEGREE;
+    }
+}
@@ -17,6 +17,7 @@
 
 package org.derpfest.server.display;
 
+import android.app.ActivityManager;
 import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
@@ -30,6 +31,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.SystemClock;
+import android.os.UserHandle;
 import android.text.format.DateUtils;
 import android.text.format.Time;
 import android.util.Slog;
@@ -57,6 +59,7 @@ public final class TwilightTracker {
     private final AlarmManager mAlarmManager;
     private final LocationManager mLocationManager;
     private final LocationHandler mLocationHandler;
+    private final TwilightLocationStore mLocationStore = new TwilightLocationStore();
 
     private final ArrayList<TwilightListenerRecord> mListeners = new ArrayList<>();
 
@@ -72,10 +75,23 @@ public final class TwilightTracker {
                 Context.LOCATION_SERVICE);
         mLocationHandler = new LocationHandler();
 
+        // start out with the last real location rather than waiting for a new one,
+        // unless location has been turned off since it was stored
+        if (isLocationEnabled()) {
+            final Location location = mLocationStore.restore();
+            if (location != null) {
+                mLocationHandler.restoreLocation(location);
+            }
+        } else {
+            mLocationStore.delete();
+        }
+
         IntentFilter filter = new IntentFilter(Intent.ACTION_AIRPLANE_MODE_CHANGED);
         filter.addAction(Intent.ACTION_TIME_CHANGED);
         filter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
         filter.addAction(ACTION_UPDATE_TWILIGHT_STATE);
+        filter.addAction(LocationManager.MODE_CHANGED_ACTION);
+        filter.addAction(Intent.ACTION_USER_SWITCHED);
         mContext.registerReceiver(mUpdateLocationReceiver, filter);
     }
 
@@ -106,6 +122,11 @@ public final class TwilightTracker {
     }
 
 
+    private boolean isLocationEnabled() {
+        return mLocationManager.isLocationEnabledForUser(
+                UserHandle.of(ActivityManager.getCurrentUser()));
+    }
+
     private void setTwilightState(TwilightState state) {
         synchronized (mLock) {
             if (!Objects.equals(mTwilightState, state)) {
@@ -163,6 +184,7 @@ public final class TwilightTracker {
                 15 * DateUtils.MINUTE_IN_MILLIS;
         private static final double FACTOR_GMT_OFFSET_LONGITUDE =
                 1000.0 * 360.0 / DateUtils.DAY_IN_MILLIS;
+        private static final String FAKE_PROVIDER = "fake";
 
         private boolean mPassiveListenerEnabled;
         private boolean mNetworkListenerEnabled;
@@ -170,7 +192,8 @@ public final class TwilightTracker {
         private long mLastNetworkRegisterTime = -MIN_LOCATION_UPDATE_MS;
         private long mLastUpdateInterval;
         private Location mLocation;
-        private final TwilightCalculator mTwilightCalculator = new TwilightCalculator();
+        // mLocation was restored from a previous boot, replaced by the first real fix
+        private boolean mLocationProvisional;
 
         public void processNewLocation(Location location) {
             Message msg = obtainMessage(MSG_PROCESS_NEW_LOCATION, location);
@@ -202,7 +225,7 @@ public final class TwilightTracker {
                                 + ", hasMoved=" + hasMoved
                                 + ", hasBetterAccuracy=" + hasBetterAccuracy);
                     }
-                    if (hasMoved || hasBetterAccuracy) {
+                    if (mLocationProvisional || hasMoved || hasBetterAccuracy) {
                         setLocation(location);
                     }
                     break;
@@ -247,7 +270,7 @@ public final class TwilightTracker {
 
                         if (!mDidFirstInit) {
                             mDidFirstInit = true;
-                            if (mLocation == null) {
+                            if (mLocation == null || mLocationProvisional) {
                                 retrieveLocation();
                             }
                         }
@@ -281,7 +304,8 @@ public final class TwilightTracker {
                         sendEmptyMessageDelayed(MSG_ENABLE_LOCATION_UPDATES, mLastUpdateInterval);
                     }
 
-                    if (!networkLocationEnabled && mLocation == null) {
+                    if (!networkLocationEnabled
+                            && (mLocation == null || mLocationProvisional)) {
                         if (DEBUG) {
                             Slog.d(TAG, "Network location unavailable");
                         }
@@ -318,12 +342,16 @@ public final class TwilightTracker {
             // In the case there is no location available (e.g. GPS fix or network location
             // is not available yet), the longitude of the location is estimated using the timezone,
             // latitude and accuracy are set to get a good average.
+            if (location == null && mLocationProvisional) {
+                // the restored location beats an estimate
+                return;
+            }
             if (location == null) {
                 Time currentTime = new Time();
                 currentTime.set(System.currentTimeMillis());
                 double lngOffset = FACTOR_GMT_OFFSET_LONGITUDE *
                         (currentTime.gmtoff - (currentTime.isDst > 0 ? 3600 : 0));
-                location = new Location("fake");
+                location = new Location(FAKE_PROVIDER);
                 location.setLongitude(lngOffset);
                 location.setLatitude(0);
                 location.setAccuracy(417000.0f);
@@ -340,6 +368,19 @@ public final class TwilightTracker {
 
         private void setLocation(Location location) {
             mLocation = location;
+            mLocationProvisional = false;
+            if (!FAKE_PROVIDER.equals(location.getProvider())) {
+                mLocationStore.store(location);
+            }
+            updateTwilightState();
+        }
+
+        void restoreLocation(Location location) {
+            if (DEBUG) {
+                Slog.d(TAG, "Restored location: " + location);
+            }
+            mLocation = location;
+            mLocationProvisional = true;
             updateTwilightState();
         }
 
@@ -351,22 +392,14 @@ public final class TwilightTracker {
 
             final long now = System.currentTimeMillis();
 
-            // calculate yesterday's twilight
-            mTwilightCalculator.calculateTwilight(now - DateUtils.DAY_IN_MILLIS,
-                    mLocation.getLatitude(), mLocation.getLongitude());
-            final long yesterdaySunset = mTwilightCalculator.mSunset;
-
-            // calculate today's twilight
-            mTwilightCalculator.calculateTwilight(now,
-                    mLocation.getLatitude(), mLocation.getLongitude());
-            final boolean isNight = (mTwilightCalculator.mState == TwilightCalculator.NIGHT);
-            final long todaySunrise = mTwilightCalculator.mSunrise;
-            final long todaySunset = mTwilightCalculator.mSunset;
-
-            // calculate tomorrow's twilight
-            mTwilightCalculator.calculateTwilight(now + DateUtils.DAY_IN_MILLIS,
-                    mLocation.getLatitude(), mLocation.getLongitude());
-            final long tomorrowSunrise = mTwilightCalculator.mSunrise;
+            // calculate yesterday's, today's and tomorrow's twilight
+            final TwilightCalculator.DayTwilight[] days = TwilightCalculator.calculateTwilight(
+                    now, mLocation.getLatitude(), mLocation.getLongitude(), -1, 3);
+            final long yesterdaySunset = days[0].sunset;
+            final boolean isNight = (days[1].getState(now) == TwilightCalculator.NIGHT);
+            final long todaySunrise = days[1].sunrise;
+            final long todaySunset = days[1].sunset;
+            final long tomorrowSunrise = days[2].sunrise;
 
             // set twilight state
             TwilightState state = new TwilightState(isNight, yesterdaySunset,
@@ -409,6 +442,19 @@ public final class TwilightTracker {
     private final BroadcastReceiver mUpdateLocationReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
+            // the stored location may only be kept while the user who had
+            // location on is around and keeps it on
+            if (Intent.ACTION_USER_SWITCHED.equals(intent.getAction())) {
+                mLocationStore.delete();
+                return;
+            }
+            if (LocationManager.MODE_CHANGED_ACTION.equals(intent.getAction())) {
+                if (!isLocationEnabled()) {
+                    mLocationStore.delete();
+                }
+                return;
+            }
+
             if (Intent.ACTION_AIRPLANE_MODE_CHANGED.equals(intent.getAction())
                     && !intent.getBooleanExtra("state", false)) {
                 // Airplane mode is now off!
@@ -30,9 +30,13 @@ import com.android.server.SystemService;
 import com.android.server.display.color.DisplayTransformManager;
 
 import org.derpfest.app.LineageContextConstants;
+import org.derpfest.hardware.HardwareCallStats;
 import org.derpfest.hardware.ILineageHardwareService;
 import org.derpfest.hardware.LineageHardwareManager;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 /** @hide */
 public class LineageHardwareService extends SystemService {
 
@@ -42,6 +46,10 @@ public class LineageHardwareService extends SystemService {
     private final Context mContext;
     private final LineageHardwareInterface mLineageHwImpl;
 
+    // time spent in the hardware serving binder calls, rejected calls are not
+    // recorded. Errors are counted as in LineageHardwareManager.
+    private final HardwareCallStats mCallStats = new HardwareCallStats(TAG);
+
     private interface LineageHardwareInterface {
         public int getSupportedFeatures();
         public boolean get(int feature);
@@ -196,15 +204,21 @@ public class LineageHardwareService extends SystemService {
 
     private final IBinder mService = new ILineageHardwareService.Stub() {
 
+        // callers have enforced the permission already
         private boolean isSupported(int feature) {
-            return (getSupportedFeatures() & feature) == feature;
+            return (mLineageHwImpl.getSupportedFeatures() & feature) == feature;
         }
 
         @Override
         public int getSupportedFeatures() {
             mContext.enforceCallingOrSelfPermission(
                     org.derpfest.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
-            return mLineageHwImpl.getSupportedFeatures();
+            final long start = HardwareCallStats.start();
+            try {
+                return mLineageHwImpl.getSupportedFeatures();
+            } finally {
+                mCallStats.record(HardwareCallStats.GET_SUPPORTED_FEATURES, 0, start, false);
+            }
         }
 
         @Override
@@ -215,7 +229,15 @@ public class LineageHardwareService extends SystemService {
                 Log.e(TAG, "feature " + feature + " is not supported");
                 return false;
             }
-            return mLineageHwImpl.get(feature);
+            final long start = HardwareCallStats.start();
+            boolean error = true;
+            try {
+                final boolean result = mLineageHwImpl.get(feature);
+                error = false;
+                return result;
+            } finally {
+                mCallStats.record(HardwareCallStats.GET, feature, start, error);
+            }
         }
 
         @Override
@@ -226,7 +248,15 @@ public class LineageHardwareService extends SystemService {
                 Log.e(TAG, "feature " + feature + " is not supported");
                 return false;
             }
-            return mLineageHwImpl.set(feature, enable);
+            final long start = HardwareCallStats.start();
+            boolean error = true;
+            try {
+                final boolean result = mLineageHwImpl.set(feature, enable);
+                error = !result;
+                return result;
+            } finally {
+                mCallStats.record(HardwareCallStats.SET, feature, start, error);
+            }
         }
 
         @Override
@@ -237,7 +267,16 @@ public class LineageHardwareService extends SystemService {
                 Log.e(TAG, "Display color calibration is not supported");
                 return null;
             }
-            return mLineageHwImpl.getDisplayColorCalibration();
+            final long start = HardwareCallStats.start();
+            boolean error = true;
+            try {
+                final int[] result = mLineageHwImpl.getDisplayColorCalibration();
+                error = result == null;
+                return result;
+            } finally {
+                mCallStats.record(HardwareCallStats.GET_CALIBRATION,
+                        LineageHardwareManager.FEATURE_DISPLAY_COLOR_CALIBRATION, start, error);
+            }
         }
 
         @Override
@@ -252,7 +291,30 @@ public class LineageHardwareService extends SystemService {
                 Log.e(TAG, "Invalid color calibration");
                 return false;
             }
-            return mLineageHwImpl.setDisplayColorCalibration(rgb);
+            final long start = HardwareCallStats.start();
+            boolean error = true;
+            try {
+                final boolean result = mLineageHwImpl.setDisplayColorCalibration(rgb);
+                error = !result;
+                return result;
+            } finally {
+                mCallStats.record(HardwareCallStats.SET_CALIBRATION,
+                        LineageHardwareManager.FEATURE_DISPLAY_COLOR_CALIBRATION, start, error);
+            }
+        }
+
+        @Override
+        public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+
+            pw.println();
+            pw.println("LineageHardwareService State:");
+            pw.println("  supportedFeatures=0x" +
+                    Integer.toHexString(mLineageHwImpl.getSupportedFeatures()));
+
+            mCallStats.dump(pw);
+            // HAL calls made from system_server, LiveDisplay included
+            LineageHardwareManager.dumpCallStats(pw);
         }
     };
 